@@ -17,40 +17,141 @@
 
 package HttpFlex;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.nio.channels.Channels;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLSession;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 public class HttpFlex {
 	final static AtomicBoolean defaultDebug = new AtomicBoolean();
@@ -59,10 +160,52 @@ public class HttpFlex {
 	static final AtomicReference<Gson> defaultGson = new AtomicReference<>(new Gson());
 	Gson gson = null;
 
-	final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder();
-	final HttpClient.Builder clientBuilder = HttpClient.newBuilder();
+	static final AtomicReference<List<Codec>> defaultCodecs = new AtomicReference<>(List.of());
+	List<Codec> codecs = List.of();
+	/**
+	 * The Accept header set from {@link #codecs}, null when the current Accept
+	 * header (if any) was set by the caller.
+	 */
+	String codecAccept;
+
+	/**
+	 * Executor for blocking work that must not run on a client executor thread,
+	 * such as decoding a streamed response body of an asynchronous request or
+	 * encoding a streamed Json request body.
+	 */
+	static final Executor blockingExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("HttpFlex-", 0).factory());
+
+	/**
+	 * Timer of deadlines, on one daemon thread. Its tasks only signal and
+	 * cancel, and cancelled tasks are removed at once, so a call that finishes
+	 * early does not keep its timer until the deadline.
+	 */
+	static final ScheduledThreadPoolExecutor scheduler = scheduler();
+
+	static ScheduledThreadPoolExecutor scheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("HttpFlex-deadline").daemon().factory());
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	HttpRequest.Builder requestBuilder;
+	ClientConfig clientConfig = ClientConfig.DEFAULT;
+	boolean compression;
+	int compressThreshold = -1;
+	HttpCache cache;
+	RetryPolicy retryPolicy;
+	Duration deadline;
+	static final AtomicReference<Metrics> defaultMetrics = new AtomicReference<>();
+	Metrics metrics;
+	static final AtomicReference<HostLimiter> defaultLimiter = new AtomicReference<>();
+	static final AtomicBoolean defaultVirtualThreads = new AtomicBoolean();
+	HostLimiter limiter;
 	HttpRequest request;
 	HttpResponse<?> httpResponse;
+	/**
+	 * Request body of the current call, kept for {@link Trace} in debug mode.
+	 */
+	Object debugBody;
 
 	/**
 	 * Sets the default debug mode for all instances of HttpFlex.
@@ -75,7 +218,9 @@ public class HttpFlex {
 	}
 
 	/**
-	 * Enables or disables debug mode for this instance of HttpFlex.
+	 * Enables or disables debug mode for this instance of HttpFlex. Calls in
+	 * debug mode are sampled by {@link DebugLog} and traced into its ring
+	 * buffer.
 	 *
 	 * @param allowDebug true to enable debug mode, false to disable
 	 * @return this
@@ -113,6 +258,89 @@ public class HttpFlex {
 		defaultGson.set(gson);
 	}
 
+	/**
+	 * Sets the body codecs of this instance, in order of preference. Objects sent
+	 * as request body are encoded with the first codec, response bodies are
+	 * decoded with the codec matching their Content-Type, and the Accept header
+	 * lists the media types of all codecs, unless the caller set Accept itself.
+	 * Json through {@link #gson()} stays the fallback for responses no codec
+	 * matches.
+	 *
+	 * @param codecs the codecs to use, none for Json through {@link #gson()}
+	 *               (which also removes an Accept header set by codecs)
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex codecs(Codec... codecs) {
+		this.codecs = List.of(codecs);
+		String accept = requestHeader(requestBuilder, "Accept");
+		if (accept != null && !accept.equals(codecAccept)) {
+			return this;
+		}
+		if (codecs.length > 0) {
+			codecAccept = Codec.accept(this.codecs);
+			requestBuilder.setHeader("Accept", codecAccept);
+		} else if (accept != null) {
+			codecAccept = null;
+			removeHeader("Accept");
+		}
+		return this;
+	}
+
+	/**
+	 * @return the first value of the header name in builder, null when it has
+	 *         none or no URI yet
+	 */
+	static String requestHeader(HttpRequest.Builder builder, String name) {
+		try {
+			return builder.copy().build().headers().firstValue(name).orElse(null);
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the codecs of every new instance, see {@link #codecs(Codec...)}. The
+	 * first one also encodes the Json parts of {@link Multipart}.
+	 *
+	 * @param codecs the codecs to use, none for Json through {@link #gson()}
+	 */
+	public static void defaultCodecs(Codec... codecs) {
+		defaultCodecs.set(List.of(codecs));
+	}
+
+	/**
+	 * @param headers the response headers
+	 * @return the codec matching the Content-Type of headers, Json through
+	 *         {@link #gson()} when none does
+	 */
+	Codec codec(HttpHeaders headers) {
+		if (!codecs.isEmpty()) {
+			String contentType = headers.firstValue("Content-Type").orElse("");
+			for (Codec codec : codecs) {
+				if (codec.accepts(contentType)) {
+					return codec;
+				}
+			}
+		}
+		return Codec.gson(gson());
+	}
+
+	/**
+	 * @return the first of {@link #defaultCodecs(Codec...)}, Json through
+	 *         {@link #defaultGson} when none is set
+	 */
+	static Codec defaultCodec() {
+		List<Codec> codecs = defaultCodecs.get();
+		return codecs.isEmpty() ? Codec.gson(defaultGson.get()) : codecs.getFirst();
+	}
+
+	/**
+	 * @return the codec encoding request bodies, see {@link #codecs(Codec...)}
+	 */
+	Codec requestCodec() {
+		return codecs.isEmpty() ? Codec.gson(gson()) : codecs.getFirst();
+	}
+
 	/**
 	 * Constructs a new HttpFlex instance with the specified URL.
 	 *
@@ -120,7 +348,7 @@ public class HttpFlex {
 	 */
 
 	public HttpFlex(String url) {
-		debug = defaultDebug.get();
+		this(HttpRequest.newBuilder());
 		try {
 			requestBuilder.uri(URI.create(url));
 		} catch (IllegalArgumentException e) {
@@ -137,10 +365,25 @@ public class HttpFlex {
 	 */
 
 	public HttpFlex(URI uri) {
-		debug = defaultDebug.get();
+		this(HttpRequest.newBuilder());
 		requestBuilder.uri(uri);
 	}
 
+	private HttpFlex(HttpRequest.Builder requestBuilder) {
+		debug = defaultDebug.get();
+		metrics = defaultMetrics.get();
+		limiter = defaultLimiter.get();
+		if (defaultVirtualThreads.get()) {
+			clientConfig = clientConfig.withVirtualThreads();
+		}
+		this.requestBuilder = requestBuilder;
+		codecs = defaultCodecs.get();
+		if (!codecs.isEmpty() && requestHeader(requestBuilder, "Accept") == null) {
+			codecAccept = Codec.accept(codecs);
+			requestBuilder.setHeader("Accept", codecAccept);
+		}
+	}
+
 	/**
 	 * Creates a new HttpFlex instance with the specified URL.
 	 *
@@ -179,35 +422,7 @@ public class HttpFlex {
 	 * @return the response object of the specified class
 	 */
 	private <R> R getResponse(Class<R> clazz) {
-		if (debug) {
-			System.out.println("\nFrom method: " + Thread.currentThread().getStackTrace()[3].getMethodName() + "\nRequest: " + request.uri().toString() + "\n");
-		}
-		try (HttpClient httpclient = clientBuilder.build()) {
-			this.httpResponse = switch (clazz.getSimpleName()) {
-				case "InputStream" -> clientBuilder.build().send(request, BodyHandlers.ofInputStream());
-				case "byte[]" -> httpclient.send(request, BodyHandlers.ofByteArray());
-				default -> httpclient.send(request, BodyHandlers.ofString());
-			};
-
-			if (debug) {
-				System.out.println(switch (httpResponse.body()) {
-					case InputStream inputStream ->
-							"Response Body: InputStream " + (inputStream.available() / 1024) + "KB\n";
-					case byte[] bytes -> "Response Body: Bytes " + (bytes.length / 1024) + "KB\n";
-					default -> "Response Body: " + httpResponse.body().toString() + "\n";
-				});
-			}
-
-			if (clazz.equals(InputStream.class) || clazz.equals(byte[].class) || clazz.equals(String.class)) {
-				return clazz.cast(httpResponse.body());
-			} else {
-				return gson().fromJson(httpResponse.body().toString(), clazz);
-			}
-
-		} catch (JsonParseException | IOException | InterruptedException e) {
-			e.printStackTrace();
-			return null;
-		}
+		return getResponse((Type) clazz);
 	}
 
 	/**
@@ -219,614 +434,6214 @@ public class HttpFlex {
 	 */
 
 	private <R> R getResponse(Type type) {
-		return gson().fromJson(getResponse(String.class), type);
+		Trace trace = Trace.start(this);
+		try {
+			return readBody(isCached(type) ? await(cache.send(this, request, type)) : await(exchange(request, bodyHandler(type))), trace);
+		} catch (JsonParseException | UncheckedIOException | IOException | InterruptedException e) {
+			Trace.error(trace, e);
+			failFast(e);
+			e.printStackTrace();
+			return null;
+		}
 	}
 
 	/**
-	 * Sets the HTTP request body based on the specified request body object.
+	 * Sends the current request without blocking and retrieves the response body
+	 * as the specified class type. Completes with null when the request fails,
+	 * the same way {@link #getResponse(Class)} returns null, or exceptionally
+	 * with a {@link DeadlineExceededException} when the deadline expires or a
+	 * {@link LimitRejectedException} when the {@link HostLimiter} queue is full.
 	 *
-	 * @param <T>         the type of the request body
-	 * @param requestBody the request body object
+	 * @param <R>   the type of the response object
+	 * @param clazz the class of the response object (e.g., MyObject.class)
+	 * @return a {@link CompletableFuture} of the response object
 	 */
-	private <T> void setRequest(T requestBody) {
-		setRequest("POST", requestBody);
+	private <R> CompletableFuture<R> getResponseAsync(Class<R> clazz) {
+		return getResponseAsync((Type) clazz);
 	}
 
 	/**
-	 * Sets the HTTP request body based on the specified request body object and
-	 * HTTP method.
+	 * Sends the current request without blocking and retrieves the response body
+	 * as the specified type. Streamed bodies (Json, or compressed with
+	 * {@link #compression(boolean)}) are decoded on {@link #blockingExecutor} so
+	 * the blocking read never occupies a thread of the client executor.
 	 *
-	 * @param <T>         the type of the request body
-	 * @param method      the HTTP method (e.g., GET, POST, PUT, DELETE)
-	 * @param requestBody the request body object
+	 * @param type the type of the response object (e.g., new TypeToken<Map<String,
+	 *             MyObject>>() {}.getType())
+	 * @return a {@link CompletableFuture} of the response object
 	 */
-	private <T> void setRequest(String method, T requestBody) {
-		method = method.toUpperCase();
-		if (debug && requestBody != null) {
-			System.out.println("\nRequest Body : " + (requestBody instanceof String ? requestBody : (requestBody.toString().length() > 200 ? requestBody.toString().substring(0, 200) + "..." : requestBody.toString())));
-		}
-		request = requestBuilder.method(method, switch (requestBody) {
-			case null -> BodyPublishers.noBody();
-			case String s -> BodyPublishers.ofString(s, StandardCharsets.UTF_8);
-			case InputStream is -> BodyPublishers.ofInputStream(() -> is);
-			case byte[] b -> BodyPublishers.ofByteArray(b);
-			case Multipart m -> {
-				requestBuilder.headers(ContentType.MULTIPART(m.boundary).headerValues());
-				yield BodyPublishers.ofByteArray(m.build());
-			}
-			case UrlEncoded u -> {
-				requestBuilder.headers(ContentType.URLENC.headerValues());
-				yield BodyPublishers.ofString(u.build());
-			}
-			default -> {
-				requestBuilder.headers(ContentType.JSON.headerValues());
-				yield BodyPublishers.ofString(gson().toJson(requestBody), StandardCharsets.UTF_8);
-			}
-		}).build();
+	private <R> CompletableFuture<R> getResponseAsync(Type type) {
+		Trace trace = Trace.start(this);
+		return (isCached(type) ? cache.send(this, request, type) : exchange(request, bodyHandler(type))).<R>thenCompose(response -> response.body() instanceof Supplier<?> ? CompletableFuture.supplyAsync(() -> readBody(response, trace), blockingExecutor) : CompletableFuture.completedFuture(readBody(response, trace))).exceptionally(e -> {
+			Trace.error(trace, cause(e));
+			failFast(e);
+			cause(e).printStackTrace();
+			return null;
+		});
 	}
 
 	/**
-	 * Enumeration of HTTP Content-Types for setting request headers.
+	 * Sends request without blocking, applying the {@link RetryPolicy} of this
+	 * instance (retries with backoff, and hedging) when it covers the request
+	 * method, and the {@link #deadline(Duration)} of this instance from now.
+	 * A {@link OneShot} handler or request body is sent once. Every request of
+	 * HttpFlex goes through here.
+	 *
+	 * @param request the request to send
+	 * @param handler the handler of the final response body
+	 * @return a {@link CompletableFuture} of the final response
 	 */
-	public enum ContentType {
-		TEXT("text/plain"), URLENC("application/x-www-form-urlencoded"), JSON("application/json"), XML("application/xml"), MP3("audio/mp3"), MP4("video/mp4"), OCTET("application/octet-stream"), CUSTOM(null);
-
-		private final String type = "Content-Type";
-		private String value;
-
-		ContentType(String value) {
-			this.value = value;
+	<T> CompletableFuture<HttpResponse<T>> exchange(HttpRequest request, BodyHandler<T> handler) {
+		Deadline expiry = Deadline.of(deadline);
+		RetryPolicy policy = retryPolicy;
+		boolean once = handler instanceof OneShot || request.bodyPublisher().orElse(null) instanceof OneShot;
+		if (expiry != null) {
+			handler = expiry.bound(handler);
 		}
-
-		public String[] headerValues() {
-			return new String[]{type, value};
+		if (policy == null || once || !policy.methods().contains(request.method())) {
+			return send(request, handler, expiry);
 		}
+		CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+		attempt(request, handler, policy, 1, expiry, result);
+		return result;
+	}
 
-		public String description() {
-			return type + ": " + value;
+	/**
+	 * Marks a response handler or request body that cannot be used twice for one
+	 * call, so {@link #exchange} neither retries nor hedges it: handlers whose
+	 * subscribers write to a shared file or counter, and {@link InputStream}
+	 * bodies, which are consumed by the first attempt.
+	 */
+	interface OneShot {
+	}
+
+	/**
+	 * {@link OneShot} wrapper of a {@link BodyHandler}.
+	 */
+	record OneShotHandler<T>(BodyHandler<T> handler) implements BodyHandler<T>, OneShot {
+		@Override
+		public BodySubscriber<T> apply(HttpResponse.ResponseInfo responseInfo) {
+			return handler.apply(responseInfo);
 		}
+	}
 
-		/**
-		 * Sets the specify ContentType I not ready write in code
-		 *
-		 * @param content_type the HTTP Content Type (e.g., "application/json")
-		 */
-		public static ContentType custom(String content_type) {
-			CUSTOM.value = content_type;
-			return CUSTOM;
+	/**
+	 * {@link OneShot} wrapper of a {@link BodyPublisher}.
+	 */
+	record OneShotPublisher(BodyPublisher publisher) implements BodyPublisher, OneShot {
+		@Override
+		public long contentLength() {
+			return publisher.contentLength();
 		}
 
-		/**
-		 * Sets the ContentType for multipart-formdata
-		 *
-		 * @param boundary the multipart-formdata
-		 */
-		public static ContentType MULTIPART(String boundary) {
-			CUSTOM.value = "multipart/form-data; boundary=" + boundary;
-			return CUSTOM;
+		@Override
+		public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			publisher.subscribe(subscriber);
 		}
 	}
 
 	/**
-	 * GET data from http server.
-	 *
-	 * @param <R>   the type of the response body
-	 * @param clazz type is Class need to cast
-	 * @return object have the same Class of clazz
+	 * Sends attempt number attempt of request and completes result with its
+	 * outcome, or schedules the next attempt. Completing or cancelling result
+	 * cancels the attempt in flight.
 	 */
-	public <R> R get(Class<R> clazz) {
-		request = requestBuilder.GET().build();
-		return getResponse(clazz);
+	<T> void attempt(HttpRequest request, BodyHandler<T> handler, RetryPolicy policy, int attempt, Deadline expiry, CompletableFuture<HttpResponse<T>> result) {
+		if (result.isDone()) {
+			return;
+		}
+		boolean last = attempt >= policy.maxAttempts();
+		BodyHandler<T> guarded = last ? handler : responseInfo -> policy.retryDelay(responseInfo, attempt) >= 0 ? BodySubscribers.replacing(null) : handler.apply(responseInfo);
+		CompletableFuture<HttpResponse<T>> sent = hedged(request, guarded, policy, expiry);
+		result.whenComplete((response, error) -> sent.cancel(true));
+		sent.whenComplete((response, error) -> {
+			long delay = -1;
+			if (!last && error != null) {
+				delay = cause(error) instanceof IOException ? policy.backoff(attempt) : -1;
+			} else if (!last) {
+				delay = policy.retryDelay(response, attempt);
+			}
+			if (delay < 0) {
+				if (error != null) {
+					result.completeExceptionally(cause(error));
+				} else {
+					result.complete(response);
+				}
+			} else if (expiry != null && TimeUnit.MILLISECONDS.toNanos(delay) >= expiry.remainingNanos()) {
+				result.completeExceptionally(expiry.exceeded());
+			} else {
+				if (metrics != null) {
+					metrics.retried(request.method(), Objects.toString(request.uri().getAuthority(), ""), attempt + 1);
+				}
+				CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> attempt(request, handler, policy, attempt + 1, expiry, result));
+			}
+		});
 	}
 
 	/**
-	 * GET data from http server.
-	 *
-	 * @param type is Class need to cast
-	 * @return object have the same Class of type
+	 * Sends request once, after waiting for a permit of the {@link #limiter} of
+	 * this instance when there is one. The wait counts against the deadline.
 	 */
-	public <R> R get(Type type) {
-		request = requestBuilder.GET().build();
-		return getResponse(type);
+	<T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, BodyHandler<T> handler, Deadline expiry) {
+		HostLimiter hostLimiter = limiter;
+		if (hostLimiter == null) {
+			return transmit(request, handler, expiry);
+		}
+		CompletableFuture<HostLimiter.Permit> permit = hostLimiter.acquire(Objects.toString(request.uri().getAuthority(), ""));
+		CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+		permit.whenComplete((granted, error) -> {
+			if (error != null) {
+				result.completeExceptionally(cause(error));
+				return;
+			}
+			CompletableFuture<HttpResponse<T>> sent = transmit(request, granted.handler(handler), expiry);
+			sent.whenComplete((response, failure) -> {
+				if (failure == null) {
+					result.complete(response);
+				} else {
+					granted.failed(cause(failure));
+					result.completeExceptionally(cause(failure));
+				}
+			});
+			result.whenComplete((response, failure) -> sent.cancel(true));
+		});
+		if (expiry != null && !permit.isDone()) {
+			ScheduledFuture<?> timer = scheduler.schedule(() -> {
+				if (!permit.isDone()) {
+					result.completeExceptionally(expiry.exceeded());
+				}
+			}, Math.max(0, expiry.remainingNanos()), TimeUnit.NANOSECONDS);
+			permit.whenComplete((granted, error) -> timer.cancel(false));
+		}
+		result.whenComplete((response, error) -> permit.cancel(false));
+		return result;
 	}
 
 	/**
-	 * GET data from http server.
-	 *
-	 * @return {@link String}
+	 * Sends request once with its timeout capped to the remaining budget of
+	 * expiry, failing with a {@link DeadlineExceededException} when the
+	 * exchange fails after expiry, and reports the attempt to {@link #metrics}.
 	 */
-	public String get() {
-		return get(String.class);
+	<T> CompletableFuture<HttpResponse<T>> transmit(HttpRequest request, BodyHandler<T> handler, Deadline expiry) {
+		if (expiry != null && expiry.expired()) {
+			return CompletableFuture.failedFuture(expiry.exceeded());
+		}
+		RequestEvent event = new RequestEvent();
+		Recorder recorder = metrics == null && !event.isEnabled() ? null : new Recorder(metrics, request, event);
+		if (recorder != null) {
+			request = recorder.request(request);
+			handler = recorder.handler(handler);
+		}
+		CompletableFuture<HttpResponse<T>> exchange = client().sendAsync(expiry == null ? request : expiry.cap(request), handler);
+		if (expiry == null && recorder == null) {
+			return exchange;
+		}
+		CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+		exchange.whenComplete((response, error) -> {
+			if (error == null) {
+				result.complete(response);
+				return;
+			}
+			Throwable failure = expiry != null && expiry.expired() ? expiry.exceeded() : cause(error);
+			if (recorder != null && !(failure instanceof CancellationException)) {
+				recorder.failed(failure);
+			}
+			result.completeExceptionally(failure);
+		});
+		result.whenComplete((response, error) -> exchange.cancel(true));
+		return result;
 	}
 
 	/**
-	 * POST data to http server.
-	 *
-	 * @param <T>         the type of the request body
-	 * @param <R>         the type of the response body
-	 * @param requestBody is object to send, allow All type of class,
-	 *                    {@link InputStream}, {@link Path} and byteArray will send
-	 *                    data the same way, {@link HttpFlex.Multipart} and
-	 *                    {@link HttpFlex.UrlEncoded} will auto generate to send,
-	 *                    {@link String} and all other Object class with send as
-	 *                    String (as Json String if is an other Object, use
-	 *                    {@link HttpFlex#gson})
-	 * @param clazz       is Class need to cast, use {@link HttpFlex#gson}
-	 * @return same Class of <R>
+	 * Sends request, and when the policy hedges, sends a duplicate if no response
+	 * arrived after the hedge delay. The first response wins and the other
+	 * exchange is cancelled.
 	 */
-	public <T, R> R post(T requestBody, Class<R> clazz) {
-		setRequest(requestBody);
-		return getResponse(clazz);
+	<T> CompletableFuture<HttpResponse<T>> hedged(HttpRequest request, BodyHandler<T> handler, RetryPolicy policy, Deadline expiry) {
+		String host = Objects.toString(request.uri().getAuthority(), "");
+		long delay = policy.hedgeDelay(host);
+		if (delay < 0) {
+			return timed(host, request, handler, expiry);
+		}
+		CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+		List<CompletableFuture<HttpResponse<T>>> exchanges = new CopyOnWriteArrayList<>();
+		AtomicInteger pending = new AtomicInteger(2);
+		Consumer<CompletableFuture<HttpResponse<T>>> start = exchange -> {
+			exchanges.add(exchange);
+			exchange.whenComplete((response, error) -> {
+				if (error == null) {
+					result.complete(response);
+				} else if (pending.decrementAndGet() == 0) {
+					result.completeExceptionally(cause(error));
+				}
+			});
+		};
+		start.accept(timed(host, request, handler, expiry));
+		CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+			if (result.isDone()) {
+				pending.decrementAndGet();
+			} else {
+				start.accept(timed(host, request, handler, expiry));
+			}
+		});
+		result.whenComplete((response, error) -> exchanges.forEach(exchange -> exchange.cancel(true)));
+		return result;
 	}
 
 	/**
-	 * POST data to http server.
-	 *
-	 * @param <T>         the type of the request body
-	 * @param <R>         the type of the response body
-	 * @param requestBody is object to send, allow All type of class,
-	 *                    {@link InputStream}, {@link Path} and byteArray will send
-	 *                    data the same way, {@link HttpFlex.Multipart} and
-	 *                    {@link HttpFlex.UrlEncoded} will auto generate to send,
-	 *                    {@link String} and all other Object class with send as
-	 *                    String (as Json String if is an other Object, use
-	 *                    {@link HttpFlex#gson})
-	 * @param type        is Class need to cast, use {@link HttpFlex#gson}
-	 * @return same Class of type
+	 * Sends request and records its latency for {@link RetryPolicy#hedgeDelay}.
 	 */
-	public <T, R> R post(T requestBody, Type type) {
-		setRequest(requestBody);
-		return getResponse(type);
+	<T> CompletableFuture<HttpResponse<T>> timed(String host, HttpRequest request, BodyHandler<T> handler, Deadline expiry) {
+		long start = System.nanoTime();
+		CompletableFuture<HttpResponse<T>> sent = send(request, handler, expiry);
+		sent.whenComplete((response, error) -> {
+			if (error == null) {
+				RetryPolicy.latency(host).record(System.nanoTime() - start);
+			}
+		});
+		return sent;
 	}
 
 	/**
-	 * POST data to http server.
-	 *
-	 * @param <T>         the type of the request body
-	 * @param requestBody is object to send, allow All type of class,
-	 *                    {@link InputStream}, {@link Path} and byteArray will send
-	 *                    data the same way, {@link HttpFlex.Multipart} and
-	 *                    {@link HttpFlex.UrlEncoded} will auto generate to send,
-	 *                    {@link String} and all other Object class with send as
-	 *                    String (as Json String if is an other Object, use
-	 *                    {@link HttpFlex#gson})
-	 * @return {@link String}
+	 * @return the cause of a {@link CompletionException} or
+	 *         {@link ExecutionException}, or error itself
 	 */
-	public <T> String post(T requestBody) {
-		return post(requestBody, String.class);
+	static Throwable cause(Throwable error) {
+		return (error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null ? error.getCause() : error;
 	}
 
 	/**
-	 * POST empty data to http server.
-	 *
-	 * @return {@link String}
+	 * Waits for future like {@link HttpClient#send} does, rethrowing the cause of
+	 * a failure and cancelling the exchange when interrupted.
 	 */
-	public <T> String post() {
-		return post(null);
+	static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			switch (cause(e)) {
+				case IOException io -> throw io;
+				case RuntimeException runtime -> throw runtime;
+				case Error error -> throw error;
+				case Throwable other -> throw new IOException(other);
+			}
+		}
 	}
 
 	/**
-	 * send DELETE to http server. same explain with {@link HttpFlex#get(Class)))}
+	 * @param type the type of the response object
+	 * @return true when the current request goes through {@link #cache}: a GET
+	 *         without credentials whose body is not streamed to the caller
 	 */
-	public <R> R delete(Class<R> clazz) {
-		request = requestBuilder.DELETE().build();
-		return getResponse(clazz);
+	boolean isCached(Type type) {
+		return cache != null && request.method().equals("GET") && !type.equals(InputStream.class) && request.headers().firstValue("Authorization").isEmpty() && request.headers().firstValue("Cookie").isEmpty();
 	}
 
 	/**
-	 * send DELETE to http server. same explain with {@link HttpFlex#get(Type))}
+	 * Converts a fully received response body to the specified type, the same
+	 * way {@link #bodyHandler(Type)} does for a streamed one.
+	 *
+	 * @param type    the type of the response object
+	 * @param headers the response headers
+	 * @param bytes   the response body, not modified
+	 * @return the response object of the specified type
 	 */
-	public <R> R delete(Type type) {
-		request = requestBuilder.DELETE().build();
-		return getResponse(type);
+	Object decodeBytes(Type type, HttpHeaders headers, byte[] bytes) {
+		if (type.equals(InputStream.class)) {
+			return new ByteArrayInputStream(bytes);
+		} else if (type.equals(byte[].class)) {
+			return bytes.clone();
+		} else if (type.equals(String.class)) {
+			return new String(bytes, charset(headers));
+		}
+		try {
+			return codec(headers).read(type, new ByteArrayInputStream(bytes), charset(headers));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
 	/**
-	 * send DELETE to http server. same explain with {@link HttpFlex#get()}
+	 * Selects the {@link BodyHandler} used to receive a response body of the
+	 * specified type. Decoded bodies are not buffered: the response stream is fed
+	 * to the {@link Codec} matching its Content-Type, Json by default, and parsed
+	 * while bytes arrive, see {@link #codecHandler(Type)}. With
+	 * {@link #compression(boolean)}
+	 * a gzip or deflate body is inflated while it streams, see
+	 * {@link #decode(HttpHeaders, InputStream)}.
 	 */
-	public String delete() {
-		return delete(String.class);
+	@SuppressWarnings("unchecked")
+	BodyHandler<?> bodyHandler(Type type) {
+		if (!type.equals(InputStream.class) && !type.equals(byte[].class) && !type.equals(String.class)) {
+			return codecHandler(type);
+		}
+		BodyHandler<Object> plain = (BodyHandler<Object>) (type.equals(InputStream.class) ? BodyHandlers.ofInputStream() : type.equals(byte[].class) ? BodyHandlers.ofByteArray() : BodyHandlers.ofString());
+		if (!compression) {
+			return plain;
+		}
+		return responseInfo -> {
+			if (responseInfo.headers().firstValue("Content-Encoding").isEmpty()) {
+				return plain.apply(responseInfo);
+			} else if (type.equals(InputStream.class)) {
+				return BodySubscribers.mapping(BodySubscribers.ofInputStream(), inputStream -> (Object) decode(responseInfo.headers(), inputStream));
+			}
+			return BodySubscribers.mapping(BodySubscribers.ofInputStream(), inputStream -> (Supplier<Object>) () -> {
+				try (InputStream decoded = decode(responseInfo.headers(), inputStream)) {
+					byte[] bytes = decoded.readAllBytes();
+					return type.equals(byte[].class) ? bytes : new String(bytes, charset(responseInfo.headers()));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		};
 	}
 
 	/**
-	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 * Wraps a response body stream to inflate it according to its
+	 * Content-Encoding (gzip, x-gzip or deflate). The decoder is created on the
+	 * first read, so no blocking read happens while the response is being set up.
 	 *
-	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
-	 *               explain with {@link HttpFlex#post(Object, Class)}
+	 * @param headers     the response headers
+	 * @param inputStream the response body as received
+	 * @return the decoded body, or inputStream when it is not encoded
 	 */
-	public <T, R> R method(String method, T requestBody, Class<R> clazz) {
-		setRequest(method, requestBody);
-		return getResponse(clazz);
+	static InputStream decode(HttpHeaders headers, InputStream inputStream) {
+		String encoding = headers.firstValue("Content-Encoding").map(value -> value.trim().toLowerCase()).orElse("identity");
+		if (!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate")) {
+			return inputStream;
+		}
+		return new FilterInputStream(inputStream) {
+			boolean started;
+
+			InputStream decoder() throws IOException {
+				if (!started) {
+					started = true;
+					PushbackInputStream pushback = new PushbackInputStream(in, 1);
+					int first = pushback.read();
+					if (first == -1) {
+						// empty body, e.g. 204, 304 or HEAD: nothing to inflate
+						in = pushback;
+						return in;
+					}
+					pushback.unread(first);
+					if (encoding.equals("deflate")) {
+						in = new InflaterInputStream(pushback, new Inflater((first & 0x0F) != 8), BufferPool.BUFFER_SIZE);
+					} else {
+						in = new GZIPInputStream(pushback, BufferPool.BUFFER_SIZE);
+					}
+				}
+				return in;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return decoder().read();
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException {
+				return decoder().read(bytes, offset, length);
+			}
+
+			@Override
+			public long skip(long count) throws IOException {
+				return decoder().skip(count);
+			}
+
+			@Override
+			public int available() throws IOException {
+				return started ? in.available() : 0;
+			}
+		};
 	}
 
 	/**
-	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 * Streaming {@link BodyHandler} decoding with the {@link Codec} matching the
+	 * response Content-Type. The body is a {@link Supplier} that parses the
+	 * response stream when called, as recommended by
+	 * {@link BodySubscribers#mapping}, so the blocking parse runs on the
+	 * caller thread rather than on the client executor.
 	 *
-	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
-	 *               explain with {@link HttpFlex#post(Object, Type)}
+	 * @param type the type of the response object
 	 */
-	public <T, R> R method(String method, T requestBody, Type type) {
-		setRequest(method, requestBody);
-		return getResponse(type);
+	@SuppressWarnings("unchecked")
+	<R> BodyHandler<Supplier<R>> codecHandler(Type type) {
+		boolean decompress = compression;
+		return responseInfo -> BodySubscribers.mapping(BodySubscribers.ofInputStream(), inputStream -> () -> {
+			InputStream body = decompress ? decode(responseInfo.headers(), inputStream) : inputStream;
+			try (body) {
+				return (R) codec(responseInfo.headers()).read(type, body, charset(responseInfo.headers()));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
 	}
 
 	/**
-	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 * @param headers the response headers
+	 * @return the charset of the Content-Type header, UTF-8 if absent or unknown
+	 */
+	static Charset charset(HttpHeaders headers) {
+		return headers.firstValue("Content-Type").flatMap(value -> Arrays.stream(value.split(";")).map(String::trim).filter(param -> param.regionMatches(true, 0, "charset=", 0, 8)).findFirst()).map(param -> {
+			try {
+				return Charset.forName(param.substring(8).replace("\"", ""));
+			} catch (IllegalArgumentException e) {
+				return StandardCharsets.UTF_8;
+			}
+		}).orElse(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Stores the response as the last response of this instance and returns its
+	 * body, decoding it first when the body is a streaming Json {@link Supplier}
+	 * (recorded as a {@link DecodeEvent}).
 	 *
-	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
-	 *               explain with {@link HttpFlex#post(Object)}
+	 * @param trace the debug trace of this call, null when not sampled
 	 */
-	public <T> String method(String method, T requestBody) {
-		return method(method, requestBody, String.class);
+	@SuppressWarnings("unchecked")
+	private <R> R readBody(HttpResponse<?> response, Trace trace) {
+		this.httpResponse = response;
+		Object body;
+		if (response.body() instanceof Supplier<?> supplier) {
+			DecodeEvent event = new DecodeEvent();
+			event.begin();
+			body = supplier.get();
+			event.end();
+			if (event.shouldCommit()) {
+				event.url = response.uri().toString();
+				event.type = body == null ? null : body.getClass().getName();
+				event.commit();
+			}
+		} else {
+			body = response.body();
+		}
+		if (trace != null) {
+			trace.line("Response: " + response.statusCode() + " " + switch (body) {
+				case null -> "null";
+				case InputStream inputStream -> "InputStream";
+				case byte[] bytes -> "Bytes " + (bytes.length / 1024) + "KB";
+				default -> Trace.truncate(body.toString());
+			});
+			trace.commit();
+		}
+		return (R) body;
 	}
 
 	/**
-	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 * Sets the HTTP request body based on the specified request body object.
 	 *
-	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
-	 *               explain with {@link HttpFlex#post()}
+	 * @param <T>         the type of the request body
+	 * @param requestBody the request body object
 	 */
-	public <T> String method(String method) {
-		return method(method, null, String.class);
+	private <T> void setRequest(T requestBody) {
+		setRequest("POST", requestBody);
 	}
 
 	/**
-	 * Send multiple action with instance
+	 * Sets the HTTP request body based on the specified request body object and
+	 * HTTP method.
 	 *
-	 * @param consumer is Consumer<HttpFlex>
+	 * @param <T>         the type of the request body
+	 * @param method      the HTTP method (e.g., GET, POST, PUT, DELETE)
+	 * @param requestBody the request body object
 	 */
-	public HttpFlex execute(Consumer<HttpFlex> consumer) {
-		consumer.accept(this);
-		return this;
+	private <T> void setRequest(String method, T requestBody) {
+		method = method.toUpperCase();
+		debugBody = debug ? requestBody : null;
+		BodyPublisher publisher = switch (requestBody) {
+			case null -> BodyPublishers.noBody();
+			case String s -> BodyPublishers.ofString(s, StandardCharsets.UTF_8);
+			case InputStream is -> BodyPublishers.ofInputStream(() -> is);
+			case byte[] b -> BodyPublishers.ofByteArray(b);
+			case Multipart m -> {
+				requestBuilder.setHeader("Content-Type", Header.multipart(m.boundary).value());
+				yield m.publisher();
+			}
+			case UrlEncoded u -> {
+				requestBuilder.setHeader("Content-Type", ContentType.URLENC.header().value());
+				yield u.publisher();
+			}
+			default -> {
+				Codec codec = requestCodec();
+				requestBuilder.setHeader("Content-Type", codec.mediaType());
+				yield ofCodec(codec, requestBody);
+			}
+		};
+		boolean compress = requestBody != null && compressThreshold >= 0 && (publisher.contentLength() < 0 || publisher.contentLength() >= compressThreshold);
+		if (compress) {
+			publisher = gzip(publisher);
+		}
+		if (requestBody instanceof InputStream || (requestBody instanceof Multipart m && m.data().values().stream().anyMatch(InputStream.class::isInstance))) {
+			publisher = new OneShotPublisher(publisher);
+		}
+		if (compress) {
+			request = requestBuilder.copy().header("Content-Encoding", "gzip").method(method, publisher).build();
+		} else {
+			request = requestBuilder.method(method, publisher).build();
+		}
 	}
 
 	/**
-	 * Send multiple action with instance
+	 * Gzip {@link BodyPublisher} compressing source on {@link #blockingExecutor}
+	 * while the client reads, see {@link PipeInputStream}. The compressed size is
+	 * not known in advance, so the body is sent chunked.
 	 *
-	 * @param <R>      return type
-	 * @param function Function<HttpFlex, R>
+	 * @param source the uncompressed body
+	 * @return the compressed body
 	 */
+	static BodyPublisher gzip(BodyPublisher source) {
+		return BodyPublishers.ofInputStream(() -> new PipeInputStream(pipe -> {
+			try (GZIPOutputStream gzip = new GZIPOutputStream(pipe, BufferPool.BUFFER_SIZE)) {
+				transferTo(source, gzip);
+			}
+		}));
+	}
 
-	public <R> R compute(Function<HttpFlex, R> function) {
-		return function.apply(this);
+	/**
+	 * Writes every buffer of publisher to out, one buffer at a time, and waits
+	 * until publisher completes.
+	 */
+	static void transferTo(BodyPublisher publisher, OutputStream out) throws IOException {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		publisher.subscribe(new Flow.Subscriber<>() {
+			final byte[] copy = new byte[8192];
+			Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ByteBuffer buffer) {
+				try {
+					if (buffer.hasArray()) {
+						out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					} else {
+						while (buffer.hasRemaining()) {
+							int count = Math.min(copy.length, buffer.remaining());
+							buffer.get(copy, 0, count);
+							out.write(copy, 0, count);
+						}
+					}
+					subscription.request(1);
+				} catch (IOException e) {
+					subscription.cancel();
+					done.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				done.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				done.complete(null);
+			}
+		});
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		}
 	}
 
 	/**
-	 * Sets the proxy authentication credentials for HTTP requests.
+	 * {@link BodyPublisher} encoding body with codec. A body that fits in one
+	 * {@link BufferPool} buffer is encoded once and sent with its exact
+	 * Content-Length. A larger body is encoded into pooled buffers while the
+	 * client pulls them, see {@link PipeInputStream}, and is sent chunked.
 	 *
-	 * @param username The username for proxy authentication.
-	 * @param password The password for proxy authentication.
+	 * @param codec the codec to encode with
+	 * @param body  the object to send
+	 * @return the encoded body
 	 */
-	public HttpFlex proxyAuth(String username, String password) {
-		requestBuilder.headers("Proxy-Authorization", "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
-		return this;
+	static BodyPublisher ofCodec(Codec codec, Object body) {
+		byte[] buffer = BufferPool.acquire();
+		try {
+			try (BufferOutputStream out = new BufferOutputStream(buffer)) {
+				codec.write(body, out);
+				return BodyPublishers.ofByteArray(Arrays.copyOf(buffer, out.count));
+			}
+		} catch (RuntimeException | IOException e) {
+			if (!(e == BufferOutputStream.OVERFLOW || e.getCause() == BufferOutputStream.OVERFLOW)) {
+				throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+			}
+			return BodyPublishers.ofInputStream(() -> new PipeInputStream(pipe -> {
+				try (pipe) {
+					codec.write(body, pipe);
+				}
+			}));
+		} finally {
+			BufferPool.release(buffer);
+		}
 	}
 
 	/**
-	 * Sets the proxy server details for HTTP requests.
-	 *
-	 * @param ip   The IP address of the proxy server.
-	 * @param port The port number of the proxy server.
+	 * Encodes and decodes request and response bodies of one media type, see
+	 * {@link HttpFlex#codecs(Codec...)}. Json through Gson is the default,
+	 * {@link #cbor(Gson)} is a compact binary alternative for services that
+	 * accept it.
 	 */
-	public HttpFlex proxy(String ip, Integer port) {
-		clientBuilder.proxy(ProxySelector.of(new InetSocketAddress(ip, port)));
-		return this;
+	public interface Codec {
+		/**
+		 * @return the media type this codec writes, sent as Content-Type
+		 */
+		String mediaType();
+
+		/**
+		 * Encodes body to out, without closing it.
+		 */
+		void write(Object body, OutputStream out) throws IOException;
+
+		/**
+		 * Decodes a value of type from in.
+		 *
+		 * @param charset the charset of the Content-Type, for text formats
+		 */
+		Object read(Type type, InputStream in, Charset charset) throws IOException;
+
+		/**
+		 * @param contentType a Content-Type header value, with or without parameters
+		 * @return true when this codec decodes bodies of contentType
+		 */
+		default boolean accepts(String contentType) {
+			int end = contentType.indexOf(';');
+			return (end < 0 ? contentType : contentType.substring(0, end)).trim().equalsIgnoreCase(mediaType());
+		}
+
+		/**
+		 * @return Json codec of gson
+		 */
+		static Codec gson(Gson gson) {
+			return new GsonCodec(gson);
+		}
+
+		/**
+		 * @return CBOR (RFC 8949) codec mapping objects through the Json tree of gson
+		 */
+		static Codec cbor(Gson gson) {
+			return new CborCodec(gson);
+		}
+
+		/**
+		 * @return the Accept header value of codecs, in order of preference, with
+		 *         Json as the last choice
+		 */
+		static String accept(List<Codec> codecs) {
+			StringBuilder accept = new StringBuilder();
+			int quality = 10;
+			for (Codec codec : codecs) {
+				accept.append(accept.isEmpty() ? "" : ", ").append(codec.mediaType());
+				if (quality < 10) {
+					accept.append(";q=0.").append(quality);
+				}
+				quality = Math.max(quality - 1, 1);
+			}
+			if (codecs.stream().noneMatch(codec -> codec.accepts(ContentType.JSON.header().value()))) {
+				accept.append(", ").append(ContentType.JSON.header().value()).append(";q=0.1");
+			}
+			return accept.toString();
+		}
 	}
 
 	/**
-	 * Sets custom headers for HTTP requests.
-	 *
-	 * @param keyValue An array of key-value pairs representing headers.
-	 * @return This {@code HttpFlex} instance for method chaining.
+	 * Json {@link Codec} streaming through {@link JsonWriter} and
+	 * {@link JsonReader} of gson.
 	 */
-	public HttpFlex header(String... keyValue) {
-		requestBuilder.headers(keyValue);
-		return this;
+	record GsonCodec(Gson gson) implements Codec {
+		@Override
+		public String mediaType() {
+			return ContentType.JSON.header().value();
+		}
+
+		@Override
+		public boolean accepts(String contentType) {
+			return Codec.super.accepts(contentType) || contentType.split(";")[0].trim().toLowerCase().endsWith("+json");
+		}
+
+		@Override
+		public void write(Object body, OutputStream out) throws IOException {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			gson.toJson(body, body.getClass(), gson.newJsonWriter(writer));
+			writer.flush();
+		}
+
+		@Override
+		public Object read(Type type, InputStream in, Charset charset) throws IOException {
+			return gson.fromJson(gson.newJsonReader(new InputStreamReader(in, charset)), type);
+		}
 	}
 
 	/**
-	 * Sets a single header for HTTP requests.
+	 * CBOR (RFC 8949) {@link Codec} without extra dependencies: objects are
+	 * mapped to a {@link JsonElement} tree by gson, so the same type adapters
+	 * apply, and the tree is written as CBOR. Integers are written in their
+	 * shortest form, as bignums beyond 64 bits, and decimals in the shortest of
+	 * float16, float32 and float64 that keeps their value. Byte strings are
+	 * read as arrays of numbers, like Gson writes byte[].
+	 */
+	record CborCodec(Gson gson) implements Codec {
+		@Override
+		public String mediaType() {
+			return "application/cbor";
+		}
+
+		@Override
+		public void write(Object body, OutputStream out) throws IOException {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 512));
+			write(gson.toJsonTree(body), data);
+			data.flush();
+		}
+
+		@Override
+		public Object read(Type type, InputStream in, Charset charset) throws IOException {
+			return gson.fromJson(read(new DataInputStream(new BufferedInputStream(in, 512)), 0), type);
+		}
+
+		static void write(JsonElement element, DataOutputStream out) throws IOException {
+			switch (element) {
+				case JsonObject object -> {
+					head(out, 5, object.size());
+					for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+						text(out, entry.getKey());
+						write(entry.getValue(), out);
+					}
+				}
+				case JsonArray array -> {
+					head(out, 4, array.size());
+					for (JsonElement item : array) {
+						write(item, out);
+					}
+				}
+				case JsonPrimitive primitive when primitive.isBoolean() -> out.write(primitive.getAsBoolean() ? 0xF5 : 0xF4);
+				case JsonPrimitive primitive when primitive.isNumber() -> number(out, primitive.getAsNumber());
+				case JsonPrimitive primitive -> text(out, primitive.getAsString());
+				default -> out.write(0xF6);
+			}
+		}
+
+		static void number(DataOutputStream out, Number number) throws IOException {
+			if (!(number instanceof Double || number instanceof Float)) {
+				try {
+					BigInteger value = new BigInteger(number.toString());
+					boolean negative = value.signum() < 0;
+					BigInteger argument = negative ? value.negate().subtract(BigInteger.ONE) : value;
+					if (argument.bitLength() <= 64) {
+						head(out, negative ? 1 : 0, argument.longValue());
+					} else {
+						byte[] magnitude = argument.toByteArray();
+						int offset = magnitude[0] == 0 ? 1 : 0;
+						head(out, 6, negative ? 3 : 2);
+						head(out, 2, magnitude.length - offset);
+						out.write(magnitude, offset, magnitude.length - offset);
+					}
+					return;
+				} catch (NumberFormatException e) {
+					// a decimal, written as a float
+				}
+			}
+			double value = number.doubleValue();
+			if ((float) value == value || Double.isNaN(value)) {
+				short half = Float.floatToFloat16((float) value);
+				if (Float.float16ToFloat(half) == (float) value || Double.isNaN(value)) {
+					out.write(0xF9);
+					out.writeShort(half);
+				} else {
+					out.write(0xFA);
+					out.writeFloat((float) value);
+				}
+			} else {
+				out.write(0xFB);
+				out.writeDouble(value);
+			}
+		}
+
+		static void text(DataOutputStream out, String text) throws IOException {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			head(out, 3, bytes.length);
+			out.write(bytes);
+		}
+
+		/**
+		 * Writes the initial byte of major type with argument, unsigned, in its
+		 * shortest form.
+		 */
+		static void head(DataOutputStream out, int major, long argument) throws IOException {
+			int type = major << 5;
+			if (Long.compareUnsigned(argument, 24) < 0) {
+				out.write(type | (int) argument);
+			} else if (Long.compareUnsigned(argument, 0x100) < 0) {
+				out.write(type | 24);
+				out.write((int) argument);
+			} else if (Long.compareUnsigned(argument, 0x10000) < 0) {
+				out.write(type | 25);
+				out.writeShort((int) argument);
+			} else if (Long.compareUnsigned(argument, 0x100000000L) < 0) {
+				out.write(type | 26);
+				out.writeInt((int) argument);
+			} else {
+				out.write(type | 27);
+				out.writeLong(argument);
+			}
+		}
+
+		static final Object BREAK = new Object();
+		static final int MAX_DEPTH = 256;
+
+		static JsonElement read(DataInputStream in, int depth) throws IOException {
+			if (item(in, in.readUnsignedByte(), depth) instanceof JsonElement element) {
+				return element;
+			}
+			throw new IOException("Unexpected CBOR break");
+		}
+
+		/**
+		 * @param depth the number of arrays, maps and tags the item is nested in,
+		 *              at most {@link #MAX_DEPTH}
+		 * @return the item starting with initial, or {@link #BREAK}
+		 */
+		static Object item(DataInputStream in, int initial, int depth) throws IOException {
+			int major = initial >> 5;
+			int info = initial & 0x1F;
+			if (depth > MAX_DEPTH) {
+				throw new IOException("CBOR nested deeper than " + MAX_DEPTH);
+			} else if (initial == 0xFF) {
+				return BREAK;
+			} else if (info == 31 && (major == 0 || major == 1 || major == 6)) {
+				throw new IOException("Malformed CBOR indefinite length for major type " + major);
+			} else if (major == 7) {
+				return switch (info) {
+					case 20 -> new JsonPrimitive(false);
+					case 21 -> new JsonPrimitive(true);
+					case 22, 23 -> JsonNull.INSTANCE;
+					case 25 -> new JsonPrimitive(Float.float16ToFloat(in.readShort()));
+					case 26 -> new JsonPrimitive(in.readFloat());
+					case 27 -> new JsonPrimitive(in.readDouble());
+					default -> throw new IOException("Unsupported CBOR simple value " + info);
+				};
+			}
+			long argument = argument(in, info);
+			return switch (major) {
+				case 0 -> new JsonPrimitive(argument >= 0 ? (Number) argument : new BigInteger(Long.toUnsignedString(argument)));
+				case 1 -> new JsonPrimitive(argument >= 0 ? (Number) (-1 - argument) : new BigInteger(Long.toUnsignedString(argument)).negate().subtract(BigInteger.ONE));
+				case 2 -> {
+					JsonArray array = new JsonArray();
+					for (byte b : bytes(in, info, argument, 2)) {
+						array.add(b);
+					}
+					yield array;
+				}
+				case 3 -> new JsonPrimitive(new String(bytes(in, info, argument, 3), StandardCharsets.UTF_8));
+				case 4 -> {
+					JsonArray array = new JsonArray();
+					for (long i = 0; info == 31 || i < argument; i++) {
+						Object item = item(in, in.readUnsignedByte(), depth + 1);
+						if (item == BREAK) {
+							if (info != 31) {
+								throw new IOException("Unexpected CBOR break");
+							}
+							break;
+						}
+						array.add((JsonElement) item);
+					}
+					yield array;
+				}
+				case 5 -> {
+					JsonObject object = new JsonObject();
+					for (long i = 0; info == 31 || i < argument; i++) {
+						Object key = item(in, in.readUnsignedByte(), depth + 1);
+						if (key == BREAK) {
+							if (info != 31) {
+								throw new IOException("Unexpected CBOR break");
+							}
+							break;
+						}
+						object.add(key instanceof JsonPrimitive primitive ? primitive.getAsString() : key.toString(), read(in, depth + 1));
+					}
+					yield object;
+				}
+				default -> {
+					JsonElement tagged = read(in, depth + 1);
+					if ((argument == 2 || argument == 3) && tagged instanceof JsonArray array) {
+						BigInteger value = BigInteger.ZERO;
+						for (JsonElement b : array) {
+							value = value.shiftLeft(8).or(BigInteger.valueOf(b.getAsInt() & 0xFF));
+						}
+						yield new JsonPrimitive(argument == 2 ? value : value.negate().subtract(BigInteger.ONE));
+					}
+					yield tagged;
+				}
+			};
+		}
+
+		/**
+		 * @return the argument following the initial byte, -1 for an indefinite
+		 *         length
+		 */
+		static long argument(DataInputStream in, int info) throws IOException {
+			return switch (info) {
+				case 24 -> in.readUnsignedByte();
+				case 25 -> in.readUnsignedShort();
+				case 26 -> Integer.toUnsignedLong(in.readInt());
+				case 27 -> in.readLong();
+				case 31 -> -1;
+				default -> {
+					if (info > 27) {
+						throw new IOException("Malformed CBOR argument " + info);
+					}
+					yield info;
+				}
+			};
+		}
+
+		/**
+		 * @return the content of a byte or text string, joining the chunks of an
+		 *         indefinite length one
+		 */
+		static byte[] bytes(DataInputStream in, int info, long length, int major) throws IOException {
+			if (info != 31) {
+				if (length < 0 || length > Integer.MAX_VALUE - 8) {
+					throw new IOException("CBOR string too long");
+				}
+				return in.readNBytes((int) length);
+			}
+			ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+			for (int initial = in.readUnsignedByte(); initial != 0xFF; initial = in.readUnsignedByte()) {
+				if (initial >> 5 != major || (initial & 0x1F) == 31) {
+					throw new IOException("Malformed CBOR string chunk");
+				}
+				chunks.writeBytes(bytes(in, initial & 0x1F, argument(in, initial & 0x1F), major));
+			}
+			return chunks.toByteArray();
+		}
+	}
+
+	/**
+	 * One event of a Server-Sent Events stream.
 	 *
-	 * @param name  The name of the header.
-	 * @param value The value of the header.
-	 * @return This {@code HttpFlex} instance for method chaining.
+	 * @param id    the last event id of the stream, empty when none was sent
+	 * @param event the event type, "message" unless set
+	 * @param data  the event data, lines joined with '\n'
+	 * @param value the data decoded to the requested type
 	 */
-	public HttpFlex header(String name, String value) {
-		requestBuilder.header(name, value);
-		return this;
+	public record ServerSentEvent<T>(String id, String event, String data, T value) {
 	}
 
-	/**
-	 * Sets a single header for HTTP requests.
-	 *
-	 * @param token The value of the bearer access token.
-	 * @return This {@code HttpFlex} instance for method chaining.
-	 */
-	public HttpFlex bearer(String token) {
-		requestBuilder.header("Authorization", "Bearer " + token);
-		return this;
-	}
+	/**
+	 * {@link Flow.Subscription} relaying the lines of a response, or the
+	 * Server-Sent Events they make up, to one subscriber. Lines come from
+	 * {@link BodySubscribers#fromLineSubscriber} and are requested from it only
+	 * against the demand of the subscriber: as many lines as items requested,
+	 * or one line at a time while an event is requested. For events, each
+	 * connection that ends is replaced by a new one after the retry delay,
+	 * doubled for each connection in a row that failed before its body. The
+	 * connections bypass the {@link HostLimiter}, whose permit would be held
+	 * for the whole life of the stream.
+	 */
+	static final class LineRelay<T> implements Flow.Subscription {
+		static final long DEFAULT_RETRY = 3000;
+		static final long MAX_BACKOFF = 60_000;
+		static final int MAX_FAILURES = 10;
+
+		final HttpFlex flex;
+		final Flow.Subscriber<? super T> downstream;
+		final Type type;
+		final ReentrantLock lock = new ReentrantLock();
+		long demand;
+		boolean cancelled;
+		boolean terminated;
+		Connection connection;
+		int failures;
+
+		// Server-Sent Events state, only used from the signals of one connection at a time
+		volatile String lastEventId = "";
+		volatile long retry = DEFAULT_RETRY;
+		final StringBuilder data = new StringBuilder();
+		String eventType;
+
+		/**
+		 * @param type the type of event values, null to relay lines
+		 */
+		LineRelay(HttpFlex flex, Flow.Subscriber<? super T> downstream, Type type) {
+			this.flex = flex;
+			this.downstream = downstream;
+			this.type = type;
+		}
+
+		void start() {
+			downstream.onSubscribe(this);
+			connect();
+		}
+
+		/**
+		 * One response body, subscribed to the line subscriber of the client.
+		 */
+		final class Connection implements Flow.Subscriber<String> {
+			Flow.Subscription upstream;
+			long outstanding;
+			boolean first = true;
+			boolean done;
+			CompletableFuture<HttpResponse<Void>> exchange;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				lock.lock();
+				try {
+					if (connection != this || cancelled || terminated) {
+						subscription.cancel();
+						return;
+					}
+					upstream = subscription;
+				} finally {
+					lock.unlock();
+				}
+				pull();
+			}
+
+			@Override
+			public void onNext(String line) {
+				lock.lock();
+				try {
+					outstanding--;
+				} finally {
+					lock.unlock();
+				}
+				T item;
+				try {
+					item = type == null ? cast(line) : parse(this, line);
+				} catch (RuntimeException e) {
+					upstream.cancel();
+					finish(e);
+					return;
+				}
+				if (item != null) {
+					lock.lock();
+					try {
+						if (cancelled || terminated) {
+							return;
+						}
+						if (demand != Long.MAX_VALUE) {
+							demand--;
+						}
+					} finally {
+						lock.unlock();
+					}
+					downstream.onNext(item);
+				}
+				pull();
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				end(error);
+			}
+
+			@Override
+			public void onComplete() {
+				end(null);
+			}
+
+			void end(Throwable error) {
+				lock.lock();
+				try {
+					if (done) {
+						return;
+					}
+					done = true;
+				} finally {
+					lock.unlock();
+				}
+				if (type == null) {
+					finish(error);
+				} else {
+					data.setLength(0);
+					eventType = null;
+					reconnect(upstream != null, error);
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		T cast(Object item) {
+			return (T) item;
+		}
+
+		void connect() {
+			Connection next = new Connection();
+			lock.lock();
+			try {
+				if (cancelled || terminated) {
+					return;
+				}
+				connection = next;
+			} finally {
+				lock.unlock();
+			}
+			HttpRequest.Builder builder = flex.requestBuilder.copy().GET();
+			if (type != null) {
+				builder.setHeader("Accept", "text/event-stream").setHeader("Cache-Control", "no-cache");
+				if (!lastEventId.isEmpty()) {
+					builder.setHeader("Last-Event-ID", lastEventId);
+				}
+			}
+			next.exchange = flex.transmit(builder.build(), responseInfo -> accepts(responseInfo.statusCode(), responseInfo.headers()) ? BodySubscribers.fromLineSubscriber(next, subscriber -> null, charset(responseInfo.headers()), null) : BodySubscribers.replacing(null), null);
+			next.exchange.whenComplete((response, error) -> {
+				if (error != null) {
+					next.end(cause(error));
+				} else if (!accepts(response.statusCode(), response.headers())) {
+					finish(type != null && response.statusCode() == 204 ? null : new IOException("Unexpected response " + response.statusCode() + response.headers().firstValue("Content-Type").map(value -> " " + value).orElse("") + " from " + response.uri()));
+				}
+			});
+			lock.lock();
+			try {
+				if (cancelled) {
+					next.exchange.cancel(true);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return true when the body of the response is relayed: a 2xx status for
+		 *         lines, a 200 text/event-stream for events
+		 */
+		boolean accepts(int statusCode, HttpHeaders headers) {
+			if (type == null) {
+				return statusCode / 100 == 2;
+			}
+			return statusCode == 200 && headers.firstValue("Content-Type").orElse("").toLowerCase().startsWith("text/event-stream");
+		}
+
+		/**
+		 * Connects again after the retry delay, backing off exponentially up to
+		 * {@link #MAX_BACKOFF} while connections fail before their body, and
+		 * failing the subscription after {@link #MAX_FAILURES} of them in a row.
+		 *
+		 * @param connected true when the connection that ended had its body
+		 * @param error     why the connection ended, null for its end of stream
+		 */
+		void reconnect(boolean connected, Throwable error) {
+			int failed;
+			lock.lock();
+			try {
+				if (cancelled || terminated) {
+					return;
+				}
+				failures = connected ? 0 : failures + 1;
+				failed = failures;
+			} finally {
+				lock.unlock();
+			}
+			if (failed >= MAX_FAILURES) {
+				finish(error != null ? error : new IOException("Event stream failed to connect " + failed + " times"));
+				return;
+			}
+			long delay = failed == 0 ? retry : Math.min(MAX_BACKOFF, retry << Math.min(failed - 1, 16));
+			if (failed > 0) {
+				delay = Math.max(delay / 2, (long) (delay * ThreadLocalRandom.current().nextDouble()));
+			}
+			CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(this::connect);
+		}
+
+		/**
+		 * Processes one line of an event stream as the WHATWG HTML specification
+		 * does.
+		 *
+		 * @return the event the line dispatches, or null
+		 */
+		T parse(Connection from, String line) {
+			if (from.first) {
+				from.first = false;
+				if (line.startsWith("\uFEFF")) {
+					line = line.substring(1);
+				}
+			}
+			if (line.isEmpty()) {
+				if (data.isEmpty()) {
+					eventType = null;
+					return null;
+				}
+				String value = data.substring(0, data.length() - 1);
+				String event = eventType == null || eventType.isEmpty() ? "message" : eventType;
+				data.setLength(0);
+				eventType = null;
+				Object decoded = type == String.class ? value : flex.gson().fromJson(value, type);
+				return cast(new ServerSentEvent<>(lastEventId, event, value, decoded));
+			} else if (line.startsWith(":")) {
+				return null;
+			}
+			int colon = line.indexOf(':');
+			String field = colon < 0 ? line : line.substring(0, colon);
+			String value = colon < 0 ? "" : line.substring(value(line, colon));
+			switch (field) {
+				case "event" -> eventType = value;
+				case "data" -> data.append(value).append('\n');
+				case "id" -> {
+					if (value.indexOf('\0') < 0) {
+						lastEventId = value;
+					}
+				}
+				case "retry" -> {
+					if (!value.isEmpty() && value.chars().allMatch(c -> c >= '0' && c <= '9')) {
+						try {
+							retry = Long.parseLong(value);
+						} catch (NumberFormatException e) {
+							// beyond long, ignored
+						}
+					}
+				}
+				default -> {
+				}
+			}
+			return null;
+		}
+
+		static int value(String line, int colon) {
+			return colon + 1 < line.length() && line.charAt(colon + 1) == ' ' ? colon + 2 : colon + 1;
+		}
+
+		/**
+		 * Requests lines of the current connection against the demand.
+		 */
+		void pull() {
+			Flow.Subscription upstream;
+			long count;
+			lock.lock();
+			try {
+				Connection current = connection;
+				if (current == null || current.upstream == null || cancelled || terminated) {
+					return;
+				}
+				long want = type == null ? demand : Math.min(demand, 1);
+				count = want - current.outstanding;
+				if (count <= 0) {
+					return;
+				}
+				current.outstanding += count;
+				upstream = current.upstream;
+			} finally {
+				lock.unlock();
+			}
+			upstream.request(count);
+		}
+
+		void finish(Throwable error) {
+			lock.lock();
+			try {
+				if (cancelled || terminated) {
+					return;
+				}
+				terminated = true;
+			} finally {
+				lock.unlock();
+			}
+			if (error == null) {
+				downstream.onComplete();
+			} else {
+				downstream.onError(error);
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				boolean active;
+				lock.lock();
+				try {
+					active = !cancelled && !terminated;
+					terminated = true;
+				} finally {
+					lock.unlock();
+				}
+				cancel();
+				if (active) {
+					downstream.onError(new IllegalArgumentException("non-positive subscription request: " + n));
+				}
+				return;
+			}
+			lock.lock();
+			try {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			} finally {
+				lock.unlock();
+			}
+			pull();
+		}
+
+		@Override
+		public void cancel() {
+			Connection current;
+			lock.lock();
+			try {
+				if (cancelled) {
+					return;
+				}
+				cancelled = true;
+				current = connection;
+			} finally {
+				lock.unlock();
+			}
+			if (current != null) {
+				if (current.upstream != null) {
+					current.upstream.cancel();
+				}
+				if (current.exchange != null) {
+					current.exchange.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Iterator over the elements of a Json array, or over a sequence of Json
+	 * values such as NDJSON, parsing one element per {@link #next()}. Only a
+	 * sequence is read leniently, which is what allows several top-level
+	 * values; an array is read strictly unless the Gson instance sets its own
+	 * strictness. The reader is closed at the end, on a parse error, or by
+	 * {@link #close()}.
+	 */
+	static final class JsonIterator<T> implements Iterator<T>, AutoCloseable {
+		final Gson gson;
+		final Type type;
+		final JsonReader reader;
+		final boolean lines;
+		boolean started;
+		boolean array;
+		boolean closed;
+
+		/**
+		 * @param lines true for a sequence of values even when they are arrays,
+		 *              false to iterate the elements of a top-level array
+		 */
+		JsonIterator(Gson gson, Type type, Reader reader, boolean lines) {
+			this.gson = gson;
+			this.type = type;
+			this.reader = gson.newJsonReader(reader);
+			this.lines = lines;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (closed) {
+				return false;
+			}
+			try {
+				if (!started) {
+					started = true;
+					if (!lines && reader.peek() == JsonToken.BEGIN_ARRAY) {
+						array = true;
+						if (reader.getStrictness() == Strictness.LEGACY_STRICT) {
+							// Gson.fromJson reads LEGACY_STRICT readers leniently
+							reader.setStrictness(Strictness.STRICT);
+						}
+						reader.beginArray();
+					} else {
+						reader.setStrictness(Strictness.LENIENT);
+					}
+				}
+				if (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+					return true;
+				}
+				close();
+				return false;
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				return gson.fromJson(reader, type);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pool of fixed-size byte buffers shared by the streaming body encoders.
+	 */
+	static final class BufferPool {
+		static final int BUFFER_SIZE = 16 * 1024;
+		static final int MAX_POOLED = 256;
+		static final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+		static final AtomicInteger pooled = new AtomicInteger();
+
+		private BufferPool() {
+		}
+
+		static byte[] acquire() {
+			byte[] buffer = buffers.poll();
+			if (buffer == null) {
+				return new byte[BUFFER_SIZE];
+			}
+			pooled.decrementAndGet();
+			return buffer;
+		}
+
+		static void release(byte[] buffer) {
+			if (buffer != null && buffer.length == BUFFER_SIZE && pooled.incrementAndGet() <= MAX_POOLED) {
+				buffers.offer(buffer);
+			} else if (buffer != null && buffer.length == BUFFER_SIZE) {
+				pooled.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * {@link OutputStream} over a single buffer, failing with {@link #OVERFLOW}
+	 * once the buffer is full.
+	 */
+	static final class BufferOutputStream extends OutputStream {
+		static final IOException OVERFLOW = new IOException("buffer overflow");
+		final byte[] buffer;
+		int count;
+
+		BufferOutputStream(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				throw OVERFLOW;
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (length > buffer.length - count) {
+				throw OVERFLOW;
+			}
+			System.arraycopy(bytes, offset, buffer, count, length);
+			count += length;
+		}
+	}
+
+	/**
+	 * Writes a request body to an {@link OutputStream}.
+	 */
+	@FunctionalInterface
+	interface BodyWriter {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * {@link InputStream} of a body produced by a {@link BodyWriter} on
+	 * {@link #blockingExecutor}. The writer fills {@link BufferPool} buffers and
+	 * hands them over through a small bounded queue, so at most a few buffers
+	 * exist per request whatever the size of the body, and the writer waits while
+	 * the client is not reading.
+	 */
+	static final class PipeInputStream extends InputStream {
+		record Chunk(byte[] bytes, int length) {
+		}
+
+		static final Chunk END = new Chunk(new byte[0], 0);
+		static final long STALL_TIMEOUT_SECONDS = 60;
+
+		final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(4);
+		volatile IOException failure;
+		volatile boolean closed;
+		Chunk current;
+		int position;
+
+		PipeInputStream(BodyWriter bodyWriter) {
+			blockingExecutor.execute(() -> {
+				try (OutputStream out = new ChunkOutputStream()) {
+					bodyWriter.writeTo(out);
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					failure = new IOException(e);
+				}
+				try {
+					push(END);
+				} catch (IOException ignored) {
+				}
+			});
+		}
+
+		void push(Chunk chunk) throws IOException {
+			try {
+				if (closed || !queue.offer(chunk, STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					BufferPool.release(chunk.bytes);
+					throw new IOException("Request body is no longer read");
+				}
+			} catch (InterruptedException e) {
+				BufferPool.release(chunk.bytes);
+				throw new InterruptedIOException();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			while (current == null || (current != END && position == current.length)) {
+				if (current != null) {
+					BufferPool.release(current.bytes);
+				}
+				try {
+					current = queue.take();
+					position = 0;
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (current == END) {
+				if (failure != null) {
+					throw failure;
+				}
+				return -1;
+			}
+			int count = Math.min(length, current.length - position);
+			System.arraycopy(current.bytes, position, bytes, offset, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			if (current != null && current != END) {
+				BufferPool.release(current.bytes);
+			}
+			current = END;
+			Chunk chunk;
+			while ((chunk = queue.poll()) != null) {
+				BufferPool.release(chunk.bytes);
+			}
+		}
+
+		final class ChunkOutputStream extends OutputStream {
+			byte[] buffer = BufferPool.acquire();
+			int count;
+
+			@Override
+			public void write(int b) throws IOException {
+				if (count == buffer.length) {
+					flushChunk();
+				}
+				buffer[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException {
+				while (length > 0) {
+					if (count == buffer.length) {
+						flushChunk();
+					}
+					int copied = Math.min(length, buffer.length - count);
+					System.arraycopy(bytes, offset, buffer, count, copied);
+					count += copied;
+					offset += copied;
+					length -= copied;
+				}
+			}
+
+			void flushChunk() throws IOException {
+				push(new Chunk(buffer, count));
+				buffer = BufferPool.acquire();
+				count = 0;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (buffer == null) {
+					return;
+				}
+				byte[] last = buffer;
+				buffer = null;
+				if (count > 0) {
+					push(new Chunk(last, count));
+				} else {
+					BufferPool.release(last);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enumeration of HTTP Content-Types for setting request headers.
+	 */
+	public enum ContentType {
+		TEXT("text/plain"), URLENC("application/x-www-form-urlencoded"), JSON("application/json"), XML("application/xml"), MP3("audio/mp3"), MP4("video/mp4"), OCTET("application/octet-stream"),
+		/**
+		 * @deprecated holds the value of the last {@link #custom(String)} or
+		 *             {@link #MULTIPART(String)} call (application/octet-stream
+		 *             before the first), shared by every thread; use
+		 *             {@link Header#contentType(String)} instead
+		 */
+		@Deprecated
+		CUSTOM("application/octet-stream");
+
+		private volatile Header header;
+
+		ContentType(String value) {
+			this.header = Header.contentType(value);
+		}
+
+		public Header header() {
+			return header;
+		}
+
+		public String[] headerValues() {
+			return header.headerValues();
+		}
+
+		public String description() {
+			return header.description();
+		}
+
+		/**
+		 * Sets the specify ContentType I not ready write in code
+		 *
+		 * @param content_type the HTTP Content Type (e.g., "application/json")
+		 * @deprecated sets the shared {@link #CUSTOM} constant, which is not
+		 *             thread-safe; use {@link Header#contentType(String)}
+		 */
+		@Deprecated
+		public static ContentType custom(String content_type) {
+			CUSTOM.header = Header.contentType(content_type);
+			return CUSTOM;
+		}
+
+		/**
+		 * Sets the ContentType for multipart-formdata
+		 *
+		 * @param boundary the multipart-formdata
+		 * @deprecated sets the shared {@link #CUSTOM} constant, which is not
+		 *             thread-safe; use {@link Header#multipart(String)}
+		 */
+		@Deprecated
+		public static ContentType MULTIPART(String boundary) {
+			CUSTOM.header = Header.multipart(boundary);
+			return CUSTOM;
+		}
+	}
+
+	/**
+	 * An immutable HTTP header, safe to keep in constants and share between
+	 * threads.
+	 *
+	 * @param name  the header name
+	 * @param value the header value
+	 */
+	public record Header(String name, String value) {
+		/**
+		 * Creates the header of a ContentType I not ready write in code
+		 *
+		 * @param content_type the HTTP Content Type (e.g., "application/json")
+		 */
+		public static Header contentType(String content_type) {
+			return new Header("Content-Type", content_type);
+		}
+
+		/**
+		 * Creates the ContentType header for multipart-formdata
+		 *
+		 * @param boundary the multipart-formdata
+		 */
+		public static Header multipart(String boundary) {
+			return contentType("multipart/form-data; boundary=" + boundary);
+		}
+
+		public String[] headerValues() {
+			return new String[]{name, value};
+		}
+
+		public String description() {
+			return name + ": " + value;
+		}
+	}
+
+	/**
+	 * GET data from http server.
+	 *
+	 * @param <R>   the type of the response body
+	 * @param clazz type is Class need to cast
+	 * @return object have the same Class of clazz
+	 */
+	public <R> R get(Class<R> clazz) {
+		request = requestBuilder.GET().build();
+		return getResponse(clazz);
+	}
+
+	/**
+	 * GET data from http server.
+	 *
+	 * @param type is Class need to cast
+	 * @return object have the same Class of type
+	 */
+	public <R> R get(Type type) {
+		request = requestBuilder.GET().build();
+		return getResponse(type);
+	}
+
+	/**
+	 * GET data from http server.
+	 *
+	 * @return {@link String}
+	 */
+	public String get() {
+		return get(String.class);
+	}
+
+	/**
+	 * GET a Json array or newline-delimited Json (NDJSON) as a lazy stream of its
+	 * elements. Elements are parsed one at a time from the response stream with
+	 * {@link #gson()} while the stream is consumed, so memory stays flat however
+	 * many elements there are. A Json text sequence (application/json-seq,
+	 * records starting with RS) is read too. A null element, such as an NDJSON
+	 * "null" line, is streamed as null. Close the stream, e.g. with
+	 * try-with-resources, to stop early: this closes the response and its
+	 * connection.
+	 *
+	 * @param <T>   the type of the elements
+	 * @param clazz the class of the elements
+	 * @return the elements, empty when the request fails or the status is not
+	 *         2xx
+	 */
+	public <T> Stream<T> getStream(Class<T> clazz) {
+		return getStream((Type) clazz);
+	}
+
+	/**
+	 * GET a Json array or newline-delimited Json as a lazy stream of its
+	 * elements, see {@link #getStream(Class)}.
+	 *
+	 * @param <T>  the type of the elements
+	 * @param type the type of the elements
+	 * @return the elements, empty when the request fails
+	 */
+	public <T> Stream<T> getStream(Type type) {
+		InputStream inputStream = get(InputStream.class);
+		if (inputStream == null) {
+			return Stream.empty();
+		}
+		if (httpResponse.statusCode() / 100 != 2) {
+			// an error body, even in Json, is not a stream of elements
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return Stream.empty();
+		}
+		HttpHeaders headers = httpResponse.headers();
+		String contentType = headers.firstValue("Content-Type").orElse("");
+		boolean lines = contentType.contains("ndjson") || contentType.contains("jsonl") || contentType.contains("json-seq");
+		Reader reader = new InputStreamReader(inputStream, charset(headers));
+		if (contentType.contains("json-seq")) {
+			reader = withoutRecordSeparators(reader);
+		}
+		JsonIterator<T> iterator = new JsonIterator<>(gson(), type, reader, lines);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false).onClose(iterator::close);
+	}
+
+	/**
+	 * Drops the RS (0x1E) starting each record of a Json text sequence (RFC
+	 * 7464). RS cannot occur unescaped inside Json, so the records become plain
+	 * whitespace separated values.
+	 */
+	static Reader withoutRecordSeparators(Reader reader) {
+		return new FilterReader(reader) {
+			@Override
+			public int read() throws IOException {
+				int c;
+				do {
+					c = in.read();
+				} while (c == 0x1E);
+				return c;
+			}
+
+			@Override
+			public int read(char[] buffer, int offset, int length) throws IOException {
+				int count;
+				do {
+					count = in.read(buffer, offset, length);
+					int kept = offset;
+					for (int i = offset; i < offset + Math.max(count, 0); i++) {
+						if (buffer[i] != 0x1E) {
+							buffer[kept++] = buffer[i];
+						}
+					}
+					count = count < 0 ? count : kept - offset;
+				} while (count == 0 && length > 0);
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * GET a chunked line protocol as a {@link Flow.Publisher} of its lines,
+	 * without their terminator. Each subscription sends its own request. Lines
+	 * are read from the network only as the subscriber requests them, and are
+	 * delivered on the client executor, so many streams share few threads. A
+	 * status other than 2xx fails the subscription with an {@link IOException}.
+	 *
+	 * @return the lines of the response body
+	 */
+	public Flow.Publisher<String> lines() {
+		return subscriber -> new LineRelay<String>(this, subscriber, null).start();
+	}
+
+	/**
+	 * GET a Server-Sent Events stream (text/event-stream) as a
+	 * {@link Flow.Publisher} of its events, see {@link #events(Type)}.
+	 *
+	 * @return the events, with their data as value
+	 */
+	public Flow.Publisher<ServerSentEvent<String>> events() {
+		return events(String.class);
+	}
+
+	/**
+	 * GET a Server-Sent Events stream as a {@link Flow.Publisher} of its events,
+	 * see {@link #events(Type)}.
+	 *
+	 * @param <T>   the type of the event values
+	 * @param clazz the class each event data is decoded to with {@link #gson()},
+	 *              String for the data as is
+	 * @return the events
+	 */
+	public <T> Flow.Publisher<ServerSentEvent<T>> events(Class<T> clazz) {
+		return events((Type) clazz);
+	}
+
+	/**
+	 * GET a Server-Sent Events stream as a {@link Flow.Publisher} of its events,
+	 * with the same backpressure and threading as {@link #lines()}. When the
+	 * stream ends or the connection fails, it reconnects after the retry delay
+	 * of the stream (3 seconds unless the server sets one) and sends the last
+	 * event id as Last-Event-ID, until the subscription is cancelled. Failed
+	 * connection attempts back off exponentially up to a minute, and the
+	 * subscription fails after 10 of them in a row. A status other than 200,
+	 * or 204 which completes the subscription, fails it. The stream does not
+	 * take a permit of the {@link #limit(HostLimiter) limiter}.
+	 *
+	 * @param <T>  the type of the event values
+	 * @param type the type each event data is decoded to with {@link #gson()},
+	 *             String for the data as is
+	 * @return the events
+	 */
+	public <T> Flow.Publisher<ServerSentEvent<T>> events(Type type) {
+		return subscriber -> new LineRelay<ServerSentEvent<T>>(this, subscriber, type).start();
+	}
+
+	/**
+	 * GET data from http server without blocking. same explain with
+	 * {@link HttpFlex#get(Class)}
+	 *
+	 * @return {@link CompletableFuture} completed with the response body, or null
+	 *         when the request fails
+	 */
+	public <R> CompletableFuture<R> getAsync(Class<R> clazz) {
+		request = requestBuilder.GET().build();
+		return getResponseAsync(clazz);
+	}
+
+	/**
+	 * GET data from http server without blocking. same explain with
+	 * {@link HttpFlex#get(Type)}
+	 */
+	public <R> CompletableFuture<R> getAsync(Type type) {
+		request = requestBuilder.GET().build();
+		return getResponseAsync(type);
+	}
+
+	/**
+	 * GET data from http server without blocking. same explain with
+	 * {@link HttpFlex#get()}
+	 */
+	public CompletableFuture<String> getAsync() {
+		return getAsync(String.class);
+	}
+
+	/**
+	 * POST data to http server.
+	 *
+	 * @param <T>         the type of the request body
+	 * @param <R>         the type of the response body
+	 * @param requestBody is object to send, allow All type of class,
+	 *                    {@link InputStream}, {@link Path} and byteArray will send
+	 *                    data the same way, {@link HttpFlex.Multipart} and
+	 *                    {@link HttpFlex.UrlEncoded} will auto generate to send,
+	 *                    {@link String} and all other Object class with send as
+	 *                    String (as Json String if is an other Object, use
+	 *                    {@link HttpFlex#gson})
+	 * @param clazz       is Class need to cast, use {@link HttpFlex#gson}
+	 * @return same Class of <R>
+	 */
+	public <T, R> R post(T requestBody, Class<R> clazz) {
+		setRequest(requestBody);
+		return getResponse(clazz);
+	}
+
+	/**
+	 * POST data to http server.
+	 *
+	 * @param <T>         the type of the request body
+	 * @param <R>         the type of the response body
+	 * @param requestBody is object to send, allow All type of class,
+	 *                    {@link InputStream}, {@link Path} and byteArray will send
+	 *                    data the same way, {@link HttpFlex.Multipart} and
+	 *                    {@link HttpFlex.UrlEncoded} will auto generate to send,
+	 *                    {@link String} and all other Object class with send as
+	 *                    String (as Json String if is an other Object, use
+	 *                    {@link HttpFlex#gson})
+	 * @param type        is Class need to cast, use {@link HttpFlex#gson}
+	 * @return same Class of type
+	 */
+	public <T, R> R post(T requestBody, Type type) {
+		setRequest(requestBody);
+		return getResponse(type);
+	}
+
+	/**
+	 * POST data to http server.
+	 *
+	 * @param <T>         the type of the request body
+	 * @param requestBody is object to send, allow All type of class,
+	 *                    {@link InputStream}, {@link Path} and byteArray will send
+	 *                    data the same way, {@link HttpFlex.Multipart} and
+	 *                    {@link HttpFlex.UrlEncoded} will auto generate to send,
+	 *                    {@link String} and all other Object class with send as
+	 *                    String (as Json String if is an other Object, use
+	 *                    {@link HttpFlex#gson})
+	 * @return {@link String}
+	 */
+	public <T> String post(T requestBody) {
+		return post(requestBody, String.class);
+	}
+
+	/**
+	 * POST empty data to http server.
+	 *
+	 * @return {@link String}
+	 */
+	public <T> String post() {
+		return post(null);
+	}
+
+	/**
+	 * POST data to http server without blocking. same explain with
+	 * {@link HttpFlex#post(Object, Class)}
+	 *
+	 * @return {@link CompletableFuture} completed with the response body, or null
+	 *         when the request fails
+	 */
+	public <T, R> CompletableFuture<R> postAsync(T requestBody, Class<R> clazz) {
+		setRequest(requestBody);
+		return getResponseAsync(clazz);
+	}
+
+	/**
+	 * POST data to http server without blocking. same explain with
+	 * {@link HttpFlex#post(Object, Type)}
+	 */
+	public <T, R> CompletableFuture<R> postAsync(T requestBody, Type type) {
+		setRequest(requestBody);
+		return getResponseAsync(type);
+	}
+
+	/**
+	 * POST data to http server without blocking. same explain with
+	 * {@link HttpFlex#post(Object)}
+	 */
+	public <T> CompletableFuture<String> postAsync(T requestBody) {
+		return postAsync(requestBody, String.class);
+	}
+
+	/**
+	 * POST empty data to http server without blocking. same explain with
+	 * {@link HttpFlex#post()}
+	 */
+	public CompletableFuture<String> postAsync() {
+		return postAsync(null);
+	}
+
+	/**
+	 * send DELETE to http server. same explain with {@link HttpFlex#get(Class)))}
+	 */
+	public <R> R delete(Class<R> clazz) {
+		request = requestBuilder.DELETE().build();
+		return getResponse(clazz);
+	}
+
+	/**
+	 * send DELETE to http server. same explain with {@link HttpFlex#get(Type))}
+	 */
+	public <R> R delete(Type type) {
+		request = requestBuilder.DELETE().build();
+		return getResponse(type);
+	}
+
+	/**
+	 * send DELETE to http server. same explain with {@link HttpFlex#get()}
+	 */
+	public String delete() {
+		return delete(String.class);
+	}
+
+	/**
+	 * send DELETE to http server without blocking. same explain with
+	 * {@link HttpFlex#getAsync(Class)}
+	 */
+	public <R> CompletableFuture<R> deleteAsync(Class<R> clazz) {
+		request = requestBuilder.DELETE().build();
+		return getResponseAsync(clazz);
+	}
+
+	/**
+	 * send DELETE to http server without blocking. same explain with
+	 * {@link HttpFlex#getAsync(Type)}
+	 */
+	public <R> CompletableFuture<R> deleteAsync(Type type) {
+		request = requestBuilder.DELETE().build();
+		return getResponseAsync(type);
+	}
+
+	/**
+	 * send DELETE to http server without blocking. same explain with
+	 * {@link HttpFlex#getAsync()}
+	 */
+	public CompletableFuture<String> deleteAsync() {
+		return deleteAsync(String.class);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 *
+	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
+	 *               explain with {@link HttpFlex#post(Object, Class)}
+	 */
+	public <T, R> R method(String method, T requestBody, Class<R> clazz) {
+		setRequest(method, requestBody);
+		return getResponse(clazz);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 *
+	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
+	 *               explain with {@link HttpFlex#post(Object, Type)}
+	 */
+	public <T, R> R method(String method, T requestBody, Type type) {
+		setRequest(method, requestBody);
+		return getResponse(type);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 *
+	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
+	 *               explain with {@link HttpFlex#post(Object)}
+	 */
+	public <T> String method(String method, T requestBody) {
+		return method(method, requestBody, String.class);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server.
+	 *
+	 * @param method is String (eg., "put", "PUT", "patch", ...). All other same
+	 *               explain with {@link HttpFlex#post()}
+	 */
+	public <T> String method(String method) {
+		return method(method, null, String.class);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server without
+	 * blocking. same explain with {@link HttpFlex#method(String, Object, Class)}
+	 */
+	public <T, R> CompletableFuture<R> methodAsync(String method, T requestBody, Class<R> clazz) {
+		setRequest(method, requestBody);
+		return getResponseAsync(clazz);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server without
+	 * blocking. same explain with {@link HttpFlex#method(String, Object, Type)}
+	 */
+	public <T, R> CompletableFuture<R> methodAsync(String method, T requestBody, Type type) {
+		setRequest(method, requestBody);
+		return getResponseAsync(type);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server without
+	 * blocking. same explain with {@link HttpFlex#method(String, Object)}
+	 */
+	public <T> CompletableFuture<String> methodAsync(String method, T requestBody) {
+		return methodAsync(method, requestBody, String.class);
+	}
+
+	/**
+	 * send Custom method (eg., PUT, PATCH, OPTIONS, ...) to http server without
+	 * blocking. same explain with {@link HttpFlex#method(String)}
+	 */
+	public CompletableFuture<String> methodAsync(String method) {
+		return methodAsync(method, null, String.class);
+	}
+
+	/**
+	 * Send multiple action with instance
+	 *
+	 * @param consumer is Consumer<HttpFlex>
+	 */
+	public HttpFlex execute(Consumer<HttpFlex> consumer) {
+		consumer.accept(this);
+		return this;
+	}
+
+	/**
+	 * Send multiple action with instance
+	 *
+	 * @param <R>      return type
+	 * @param function Function<HttpFlex, R>
+	 */
+
+	public <R> R compute(Function<HttpFlex, R> function) {
+		return function.apply(this);
+	}
+
+	/**
+	 * Sets the proxy authentication credentials for HTTP requests.
+	 *
+	 * @param username The username for proxy authentication.
+	 * @param password The password for proxy authentication.
+	 */
+	public HttpFlex proxyAuth(String username, String password) {
+		requestBuilder.headers("Proxy-Authorization", "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+		return this;
+	}
+
+	/**
+	 * Sets the proxy server details for HTTP requests.
+	 *
+	 * @param ip   The IP address of the proxy server.
+	 * @param port The port number of the proxy server.
+	 */
+	public HttpFlex proxy(String ip, Integer port) {
+		clientConfig = clientConfig.withProxy(new InetSocketAddress(ip, port));
+		return this;
+	}
+
+	/**
+	 * Enables or disables response compression. When enabled, requests send
+	 * "Accept-Encoding: gzip, deflate" and compressed responses are inflated
+	 * while they stream, for String, byte[], {@link InputStream} and Json
+	 * results alike. When disabled, no Accept-Encoding header is sent.
+	 *
+	 * @param allowCompression true to accept compressed responses
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex compression(boolean allowCompression) {
+		compression = allowCompression;
+		if (allowCompression) {
+			requestBuilder.setHeader("Accept-Encoding", "gzip, deflate");
+		} else {
+			removeHeader("Accept-Encoding");
+		}
+		return this;
+	}
+
+	/**
+	 * Removes every value of the header name from {@link #requestBuilder}, which
+	 * has no remove operation, by rebuilding it without them.
+	 */
+	void removeHeader(String name) {
+		requestBuilder = HttpRequest.newBuilder(requestBuilder.copy().build(), (header, value) -> !header.equalsIgnoreCase(name));
+	}
+
+	/**
+	 * Gzip request bodies of {@link #post(Object)} and
+	 * {@link #method(String, Object)} whose size is at least minBytes, or whose
+	 * size is unknown (streams, large Json), and mark them with
+	 * "Content-Encoding: gzip". The server must accept compressed requests.
+	 *
+	 * @param minBytes the smallest body to compress, negative to disable
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex compressRequests(int minBytes) {
+		compressThreshold = minBytes;
+		return this;
+	}
+
+	/**
+	 * Sends GET requests through a {@link HttpCache}, which may share one cache
+	 * between many HttpFlex instances.
+	 *
+	 * @param cache the cache to use, or null to disable caching
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex cache(HttpCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Retries failed requests and optionally hedges them, see {@link RetryPolicy}.
+	 *
+	 * @param policy the policy to use, or null to send every request once
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex retry(RetryPolicy policy) {
+		retryPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Retry and hedging policy of {@link HttpFlex#retry(RetryPolicy)}. A request
+	 * whose method is in methods is retried up to maxAttempts in total when it
+	 * fails with an {@link IOException} or answers a status in retryOn. The wait
+	 * before attempt n+1 is a random "full jitter" delay between 0 and
+	 * min(maxBackoff, backoff * 2^(n-1)), or the Retry-After of the response. A
+	 * response whose Retry-After exceeds maxBackoff is returned as is.
+	 * <p>
+	 * With hedging, a duplicate request is sent when no response arrived after
+	 * hedgeDelay, or after the 95th percentile of recent latencies to the same
+	 * host when hedgeDelay is null, and the first response wins. Request bodies
+	 * are sent again for each attempt, so requests with {@link InputStream}
+	 * bodies (or multipart parts) are sent once, as are downloads to files
+	 * through {@link HttpFlex#fileHandler} and {@link RangeDownload}.
+	 *
+	 * @param maxAttempts total number of attempts, at least 1
+	 * @param backoff     base delay before the first retry
+	 * @param maxBackoff  upper bound of the delay between attempts
+	 * @param retryOn     status codes to retry
+	 * @param methods     methods that may be retried (uppercase)
+	 * @param hedge       true to send hedged requests
+	 * @param hedgeDelay  fixed hedge delay, null to use the recent p95 latency
+	 */
+	public record RetryPolicy(int maxAttempts, Duration backoff, Duration maxBackoff, Set<Integer> retryOn, Set<String> methods,
+	                          boolean hedge, Duration hedgeDelay) {
+		/**
+		 * 3 attempts, 100ms to 10s backoff, retry on 408, 429, 502, 503 and 504,
+		 * for the idempotent methods GET, HEAD, OPTIONS, PUT, DELETE and TRACE,
+		 * without hedging.
+		 */
+		public static final RetryPolicy DEFAULT = new RetryPolicy(3, Duration.ofMillis(100), Duration.ofSeconds(10), Set.of(408, 429, 502, 503, 504), Set.of("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"), false, null);
+
+		static final int HEDGE_MIN_SAMPLES = 20;
+		static final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+		public RetryPolicy withMaxAttempts(int maxAttempts) {
+			return new RetryPolicy(Math.max(1, maxAttempts), backoff, maxBackoff, retryOn, methods, hedge, hedgeDelay);
+		}
+
+		public RetryPolicy withBackoff(Duration backoff, Duration maxBackoff) {
+			return new RetryPolicy(maxAttempts, backoff, maxBackoff, retryOn, methods, hedge, hedgeDelay);
+		}
+
+		public RetryPolicy withRetryOn(Integer... statusCodes) {
+			return new RetryPolicy(maxAttempts, backoff, maxBackoff, Set.of(statusCodes), methods, hedge, hedgeDelay);
+		}
+
+		public RetryPolicy withMethods(String... methods) {
+			return new RetryPolicy(maxAttempts, backoff, maxBackoff, retryOn, Arrays.stream(methods).map(String::toUpperCase).collect(Collectors.toUnmodifiableSet()), hedge, hedgeDelay);
+		}
+
+		/**
+		 * @return this policy, hedging after the recent p95 latency of the host
+		 */
+		public RetryPolicy withHedging() {
+			return new RetryPolicy(maxAttempts, backoff, maxBackoff, retryOn, methods, true, null);
+		}
+
+		/**
+		 * @param delay fixed delay before the hedged request
+		 * @return this policy, hedging after delay
+		 */
+		public RetryPolicy withHedging(Duration delay) {
+			return new RetryPolicy(maxAttempts, backoff, maxBackoff, retryOn, methods, true, delay);
+		}
+
+		/**
+		 * @return the delay in milliseconds before attempt + 1
+		 */
+		long backoff(int attempt) {
+			long ceiling = Math.min(maxBackoff.toMillis(), backoff.toMillis() << Math.min(attempt - 1, 30));
+			return ThreadLocalRandom.current().nextLong(Math.max(0, ceiling) + 1);
+		}
+
+		/**
+		 * @return the delay in milliseconds before retrying a response, or -1
+		 *         when it must not be retried
+		 */
+		long retryDelay(HttpResponse.ResponseInfo responseInfo, int attempt) {
+			return retryDelay(responseInfo.statusCode(), responseInfo.headers(), attempt);
+		}
+
+		long retryDelay(HttpResponse<?> response, int attempt) {
+			return retryDelay(response.statusCode(), response.headers(), attempt);
+		}
+
+		long retryDelay(int statusCode, HttpHeaders headers, int attempt) {
+			if (!retryOn.contains(statusCode)) {
+				return -1;
+			}
+			long delay = headers.firstValue("Retry-After").map(RetryPolicy::retryAfter).orElse(backoff(attempt));
+			return delay > maxBackoff.toMillis() ? -1 : delay;
+		}
+
+		/**
+		 * @param value a Retry-After value, in seconds or an HTTP date
+		 * @return the delay in milliseconds, 0 when value cannot be parsed
+		 */
+		static long retryAfter(String value) {
+			try {
+				return Math.max(0, Long.parseLong(value.trim()) * 1000);
+			} catch (NumberFormatException e) {
+				try {
+					return Math.max(0, ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+				} catch (DateTimeParseException ignored) {
+					return 0;
+				}
+			}
+		}
+
+		/**
+		 * @return the hedge delay in milliseconds for host, or -1 for no hedging
+		 */
+		long hedgeDelay(String host) {
+			if (!hedge) {
+				return -1;
+			} else if (hedgeDelay != null) {
+				return hedgeDelay.toMillis();
+			}
+			return latency(host).percentileMillis(0.95, HEDGE_MIN_SAMPLES);
+		}
+
+		static LatencyWindow latency(String host) {
+			return latencies.computeIfAbsent(host, key -> new LatencyWindow());
+		}
+	}
+
+	/**
+	 * Latencies of the most recent requests to one host.
+	 */
+	static final class LatencyWindow {
+		final AtomicLongArray samples = new AtomicLongArray(256);
+		final AtomicLong count = new AtomicLong();
+
+		void record(long nanos) {
+			samples.set((int) (count.getAndIncrement() % samples.length()), nanos);
+		}
+
+		/**
+		 * @return the percentile of the recorded latencies in milliseconds, or -1
+		 *         with fewer than minSamples samples
+		 */
+		long percentileMillis(double percentile, int minSamples) {
+			int size = (int) Math.min(count.get(), samples.length());
+			if (size < minSamples) {
+				return -1;
+			}
+			long[] sorted = new long[size];
+			for (int i = 0; i < size; i++) {
+				sorted[i] = samples.get(i);
+			}
+			Arrays.sort(sorted);
+			return TimeUnit.NANOSECONDS.toMillis(sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)]);
+		}
+	}
+
+	/**
+	 * Sets the default {@link HostLimiter} of new HttpFlex instances, which also
+	 * applies to the static download helpers such as
+	 * {@link HttpFlex#getFiles(Map)}.
+	 *
+	 * @param limiter the limiter to use, or null for none
+	 */
+	public static void defaultLimiter(HostLimiter limiter) {
+		defaultLimiter.set(limiter);
+	}
+
+	/**
+	 * Limits the requests of this instance per host, see {@link HostLimiter}.
+	 * Share one limiter between instances to apply the same limits to all of
+	 * them.
+	 *
+	 * @param limiter the limiter to use, or null for none
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex limit(HostLimiter limiter) {
+		this.limiter = limiter;
+		return this;
+	}
+
+	/**
+	 * Thrown when a request is rejected because the {@link HostLimiter} queue of
+	 * its host is full.
+	 */
+	public static class LimitRejectedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public LimitRejectedException(String host) {
+			super("request queue of " + host + " is full");
+		}
+	}
+
+	/**
+	 * Per-host limits on request attempts: a token bucket for the rate and an
+	 * adaptive (AIMD) limit on attempts in flight. The concurrency limit grows by
+	 * about one per round trip while responses are fine, and halves, at most once
+	 * per round trip, on a 429 or 503 response, an {@link IOException}, or a
+	 * latency above the latency target. An attempt stays in flight until its
+	 * response body is fully received, or until it is handed to the caller
+	 * while still streaming (an {@link InputStream}, or a body decoded as it is
+	 * read), since the caller reads it at its own pace and may never finish.
+	 * <p>
+	 * Attempts wait for a permit in a FIFO queue per host, so waiters are served
+	 * in arrival order. When the queue is full an attempt fails at once with a
+	 * {@link LimitRejectedException}. Waiting never blocks a thread.
+	 */
+	public static final class HostLimiter {
+		double rate;
+		double burst;
+		int initialLimit = 20;
+		int minLimit = 1;
+		int maxLimit = 200;
+		long latencyTarget;
+		int maxQueue = 1000;
+		final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+		private HostLimiter() {
+		}
+
+		public static HostLimiter instance() {
+			return new HostLimiter();
+		}
+
+		/**
+		 * @param perSecond requests per second per host, 0 for no rate limit
+		 * @param burst     requests that may be sent at once after a pause
+		 */
+		public HostLimiter rate(double perSecond, int burst) {
+			this.rate = perSecond;
+			this.burst = Math.max(1, burst);
+			return this;
+		}
+
+		/**
+		 * @param initial the starting concurrency limit per host (default 20)
+		 * @param min     the lowest limit (default 1)
+		 * @param max     the highest limit (default 200)
+		 */
+		public HostLimiter concurrency(int initial, int min, int max) {
+			this.minLimit = Math.max(1, min);
+			this.maxLimit = Math.max(minLimit, max);
+			this.initialLimit = Math.clamp(initial, minLimit, maxLimit);
+			return this;
+		}
+
+		/**
+		 * @param target attempts slower than target count as overload, null for none
+		 */
+		public HostLimiter latencyTarget(Duration target) {
+			this.latencyTarget = target == null ? 0 : target.toNanos();
+			return this;
+		}
+
+		/**
+		 * @param maxQueue most attempts waiting per host (default 1000)
+		 */
+		public HostLimiter maxQueue(int maxQueue) {
+			this.maxQueue = Math.max(0, maxQueue);
+			return this;
+		}
+
+		/**
+		 * @return the current concurrency limit of host
+		 */
+		public int limit(String host) {
+			return (int) host(host).limit;
+		}
+
+		/**
+		 * @return the number of attempts in flight to host
+		 */
+		public int inFlight(String host) {
+			return host(host).inFlight;
+		}
+
+		Host host(String host) {
+			return hosts.computeIfAbsent(host, key -> new Host(key));
+		}
+
+		CompletableFuture<Permit> acquire(String host) {
+			return host(host).acquire();
+		}
+
+		/**
+		 * Limiter state of one host, guarded by lock.
+		 */
+		final class Host {
+			final String name;
+			final ReentrantLock lock = new ReentrantLock();
+			final ArrayDeque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+			double limit = initialLimit;
+			double tokens = burst;
+			long refilled = System.nanoTime();
+			long decreased;
+			int inFlight;
+			boolean wakeScheduled;
+
+			Host(String name) {
+				this.name = name;
+			}
+
+			CompletableFuture<Permit> acquire() {
+				lock.lock();
+				try {
+					if (waiters.isEmpty() && grantable(System.nanoTime())) {
+						return CompletableFuture.completedFuture(grant());
+					} else if (waiters.size() >= maxQueue) {
+						return CompletableFuture.failedFuture(new LimitRejectedException(name));
+					}
+					CompletableFuture<Permit> waiter = new CompletableFuture<>();
+					waiters.add(waiter);
+					return waiter;
+				} finally {
+					lock.unlock();
+					drain();
+				}
+			}
+
+			/**
+			 * @return true when one more attempt may start, refilling tokens first
+			 */
+			boolean grantable(long now) {
+				if (inFlight >= (int) limit) {
+					return false;
+				} else if (rate <= 0) {
+					return true;
+				}
+				tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+				refilled = now;
+				return tokens >= 1;
+			}
+
+			Permit grant() {
+				inFlight++;
+				tokens--;
+				return new Permit(this, System.nanoTime());
+			}
+
+			/**
+			 * Grants permits to the waiters in order while limits allow, and wakes up
+			 * when the next token is due if the bucket is what blocks them.
+			 */
+			void drain() {
+				List<Map.Entry<CompletableFuture<Permit>, Permit>> granted = new ArrayList<>();
+				lock.lock();
+				try {
+					waiters.removeIf(CompletableFuture::isDone);
+					long now = System.nanoTime();
+					while (!waiters.isEmpty() && grantable(now)) {
+						granted.add(Map.entry(waiters.poll(), grant()));
+					}
+					if (!waiters.isEmpty() && inFlight < (int) limit && !wakeScheduled) {
+						wakeScheduled = true;
+						long wait = (long) Math.ceil((1 - tokens) * 1e9 / rate);
+						CompletableFuture.delayedExecutor(Math.max(1, wait), TimeUnit.NANOSECONDS).execute(() -> {
+							lock.lock();
+							try {
+								wakeScheduled = false;
+							} finally {
+								lock.unlock();
+							}
+							drain();
+						});
+					}
+				} finally {
+					lock.unlock();
+				}
+				granted.forEach(entry -> {
+					if (!entry.getKey().complete(entry.getValue())) {
+						entry.getValue().release(false, 0);
+					}
+				});
+			}
+
+			void release(boolean overloaded, long latency) {
+				lock.lock();
+				try {
+					inFlight--;
+					long now = System.nanoTime();
+					if (overloaded || (latencyTarget > 0 && latency > latencyTarget)) {
+						if (now - decreased > latency) {
+							limit = Math.max(minLimit, limit / 2);
+							decreased = now;
+						}
+					} else if (latency > 0) {
+						limit = Math.min(maxLimit, limit + 1 / limit);
+					}
+				} finally {
+					lock.unlock();
+				}
+				drain();
+			}
+		}
+
+		/**
+		 * One granted attempt, released once when its response body is complete
+		 * or handed to the caller, or the attempt fails.
+		 */
+		static final class Permit {
+			final Host host;
+			final long start;
+			final AtomicBoolean released = new AtomicBoolean();
+
+			Permit(Host host, long start) {
+				this.host = host;
+				this.start = start;
+			}
+
+			void release(boolean overloaded, long latency) {
+				if (released.compareAndSet(false, true)) {
+					host.release(overloaded, latency);
+				}
+			}
+
+			void failed(Throwable error) {
+				release(error instanceof IOException, System.nanoTime() - start);
+			}
+
+			/**
+			 * @return handler releasing this permit when the body completes, or
+			 *         when the body of a streaming subscriber is available
+			 */
+			<T> BodyHandler<T> handler(BodyHandler<T> handler) {
+				return responseInfo -> {
+					boolean overloaded = responseInfo.statusCode() == 429 || responseInfo.statusCode() == 503;
+					BodySubscriber<T> downstream = handler.apply(responseInfo);
+					// getBody() may start work, such as publishing a file, so it is called once
+					CompletionStage<T> body = downstream.getBody();
+					// an unread InputStream must not hold the permit that the caller may wait for
+					body.thenRun(() -> release(overloaded, System.nanoTime() - start));
+					return new BodySubscriber<T>() {
+						@Override
+						public CompletionStage<T> getBody() {
+							return body;
+						}
+
+						@Override
+						public void onSubscribe(Flow.Subscription subscription) {
+							// a streamed body closed before its end cancels instead of completing
+							downstream.onSubscribe(new Flow.Subscription() {
+								@Override
+								public void request(long n) {
+									subscription.request(n);
+								}
+
+								@Override
+								public void cancel() {
+									release(false, System.nanoTime() - start);
+									subscription.cancel();
+								}
+							});
+						}
+
+						@Override
+						public void onNext(List<ByteBuffer> item) {
+							downstream.onNext(item);
+						}
+
+						@Override
+						public void onError(Throwable throwable) {
+							failed(throwable);
+							downstream.onError(throwable);
+						}
+
+						@Override
+						public void onComplete() {
+							release(overloaded, System.nanoTime() - start);
+							downstream.onComplete();
+						}
+					};
+				};
+			}
+		}
+	}
+
+	/**
+	 * Sets the default {@link Metrics} of new HttpFlex instances.
+	 *
+	 * @param metrics the metrics to report to, or null for none
+	 */
+	public static void defaultMetrics(Metrics metrics) {
+		defaultMetrics.set(metrics);
+	}
+
+	/**
+	 * Reports every request attempt of this instance to metrics, see
+	 * {@link MetricsRegistry} for the built-in implementation.
+	 *
+	 * @param metrics the metrics to report to, or null for none
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex metrics(Metrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Instrumentation SPI called for each request attempt sent by HttpFlex.
+	 * Methods are called on client threads and must not block. Host is the
+	 * authority of the request URI, durations are measured from the start of
+	 * the attempt and byte counts are as sent and received on the wire.
+	 */
+	public interface Metrics {
+		/**
+		 * The response headers of an attempt arrived.
+		 */
+		default void headers(String method, String host, int statusCode, long nanos) {
+		}
+
+		/**
+		 * The response body of an attempt was fully received (and, for streamed
+		 * bodies, read).
+		 */
+		default void completed(String method, String host, int statusCode, long nanos, long bytesSent, long bytesReceived) {
+		}
+
+		/**
+		 * An attempt failed before its response completed.
+		 */
+		default void failed(String method, String host, Throwable error, long nanos) {
+		}
+
+		/**
+		 * Attempt number attempt of a request is scheduled by its
+		 * {@link RetryPolicy}.
+		 */
+		default void retried(String method, String host, int attempt) {
+		}
+	}
+
+	/**
+	 * Reports one request attempt to {@link Metrics} and as JFR events: times
+	 * the response headers and body, and counts the bytes of both directions.
+	 */
+	static final class Recorder {
+		final Metrics metrics;
+		final String method;
+		final String host;
+		final URI uri;
+		final long start = System.nanoTime();
+		final AtomicBoolean reported = new AtomicBoolean();
+		final LongAdder sent = new LongAdder();
+		final RequestEvent requestEvent;
+		final ResponseHeadersEvent headersEvent;
+		long bodyLength;
+
+		/**
+		 * @param metrics      the metrics to report to, or null
+		 * @param request      the request of the attempt
+		 * @param requestEvent a new event, begun when it is enabled
+		 */
+		Recorder(Metrics metrics, HttpRequest request, RequestEvent requestEvent) {
+			this.metrics = metrics;
+			this.method = request.method();
+			this.host = Objects.toString(request.uri().getAuthority(), "");
+			this.uri = request.uri();
+			if (requestEvent.isEnabled()) {
+				this.requestEvent = requestEvent;
+				this.headersEvent = new ResponseHeadersEvent();
+				requestEvent.begin();
+				headersEvent.begin();
+			} else {
+				this.requestEvent = null;
+				this.headersEvent = null;
+			}
+		}
+
+		/**
+		 * @return request, with a counted body publisher when its length is unknown
+		 */
+		HttpRequest request(HttpRequest request) {
+			BodyPublisher body = request.bodyPublisher().orElse(null);
+			bodyLength = body == null ? 0 : body.contentLength();
+			if (bodyLength >= 0) {
+				return request;
+			}
+			BodyPublisher counted = new BodyPublisher() {
+				@Override
+				public long contentLength() {
+					return -1;
+				}
+
+				@Override
+				public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+					body.subscribe(new Flow.Subscriber<ByteBuffer>() {
+						@Override
+						public void onSubscribe(Flow.Subscription subscription) {
+							subscriber.onSubscribe(subscription);
+						}
+
+						@Override
+						public void onNext(ByteBuffer item) {
+							sent.add(item.remaining());
+							subscriber.onNext(item);
+						}
+
+						@Override
+						public void onError(Throwable throwable) {
+							subscriber.onError(throwable);
+						}
+
+						@Override
+						public void onComplete() {
+							subscriber.onComplete();
+						}
+					});
+				}
+			};
+			return HttpRequest.newBuilder(request, (name, value) -> true).method(method, counted).build();
+		}
+
+		<T> BodyHandler<T> handler(BodyHandler<T> handler) {
+			return responseInfo -> {
+				int statusCode = responseInfo.statusCode();
+				if (metrics != null) {
+					metrics.headers(method, host, statusCode, System.nanoTime() - start);
+				}
+				if (headersEvent != null) {
+					headersEvent.end();
+					if (headersEvent.shouldCommit()) {
+						headersEvent.method = method;
+						headersEvent.url = uri.toString();
+						headersEvent.status = statusCode;
+						headersEvent.commit();
+					}
+				}
+				BodySubscriber<T> downstream = handler.apply(responseInfo);
+				LongAdder received = new LongAdder();
+				return new BodySubscriber<T>() {
+					@Override
+					public CompletionStage<T> getBody() {
+						return downstream.getBody();
+					}
+
+					@Override
+					public void onSubscribe(Flow.Subscription subscription) {
+						downstream.onSubscribe(subscription);
+					}
+
+					@Override
+					public void onNext(List<ByteBuffer> item) {
+						for (ByteBuffer buffer : item) {
+							received.add(buffer.remaining());
+						}
+						downstream.onNext(item);
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+						failed(throwable);
+						downstream.onError(throwable);
+					}
+
+					@Override
+					public void onComplete() {
+						if (reported.compareAndSet(false, true)) {
+							long bytesSent = bodyLength >= 0 ? bodyLength : sent.sum();
+							if (metrics != null) {
+								metrics.completed(method, host, statusCode, System.nanoTime() - start, bytesSent, received.sum());
+							}
+							commit(statusCode, bytesSent, received.sum(), null);
+						}
+						downstream.onComplete();
+					}
+				};
+			};
+		}
+
+		void failed(Throwable error) {
+			if (reported.compareAndSet(false, true)) {
+				if (metrics != null) {
+					metrics.failed(method, host, error, System.nanoTime() - start);
+				}
+				commit(0, bodyLength >= 0 ? bodyLength : sent.sum(), 0, error);
+			}
+		}
+
+		void commit(int statusCode, long bytesSent, long bytesReceived, Throwable error) {
+			if (requestEvent == null) {
+				return;
+			}
+			requestEvent.end();
+			if (requestEvent.shouldCommit()) {
+				requestEvent.method = method;
+				requestEvent.url = uri.toString();
+				requestEvent.status = statusCode;
+				requestEvent.bytesSent = bytesSent;
+				requestEvent.bytesReceived = bytesReceived;
+				requestEvent.error = error == null ? null : error.toString();
+				requestEvent.commit();
+			}
+		}
+	}
+
+	/**
+	 * JFR event of one request attempt, from sending it until its response body
+	 * is fully received or it fails. Its start time is the request start.
+	 */
+	@Name("HttpFlex.Request")
+	@Label("HTTP Request")
+	@Category("HttpFlex")
+	@StackTrace(false)
+	static final class RequestEvent extends Event {
+		@Label("Method")
+		String method;
+		@Label("URL")
+		String url;
+		@Label("Status")
+		int status;
+		@Label("Bytes Sent")
+		@DataAmount
+		long bytesSent;
+		@Label("Bytes Received")
+		@DataAmount
+		long bytesReceived;
+		@Label("Error")
+		String error;
+	}
+
+	/**
+	 * JFR event from sending a request attempt until its response headers arrive.
+	 */
+	@Name("HttpFlex.ResponseHeaders")
+	@Label("HTTP Response Headers")
+	@Category("HttpFlex")
+	@StackTrace(false)
+	static final class ResponseHeadersEvent extends Event {
+		@Label("Method")
+		String method;
+		@Label("URL")
+		String url;
+		@Label("Status")
+		int status;
+	}
+
+	/**
+	 * JFR event of decoding a streamed response body into its result.
+	 */
+	@Name("HttpFlex.Decode")
+	@Label("HTTP Body Decode")
+	@Category("HttpFlex")
+	@StackTrace(false)
+	static final class DecodeEvent extends Event {
+		@Label("URL")
+		String url;
+		@Label("Result Type")
+		String type;
+	}
+
+	/**
+	 * Sampled debug tracing. A call of an instance in debug mode is traced when
+	 * it is the n-th call since the last traced one and the traces of the
+	 * current second are under the rate limit. Traces go to a bounded ring
+	 * buffer, read with {@link #entries()} or {@link #dump(PrintStream)}, and
+	 * to System.out unless {@link #echo(boolean)} turns that off.
+	 */
+	public static final class DebugLog {
+		static volatile int sampleEvery = 1;
+		static volatile int maxPerSecond = Integer.MAX_VALUE;
+		static volatile boolean echo = true;
+		static final AtomicLong calls = new AtomicLong();
+		static final AtomicLong second = new AtomicLong();
+		static final AtomicInteger traced = new AtomicInteger();
+		static final ReentrantLock lock = new ReentrantLock();
+		static String[] ring = new String[1024];
+		static long next;
+
+		private DebugLog() {
+		}
+
+		/**
+		 * @param everyN       trace 1 call in everyN (default 1)
+		 * @param maxPerSecond trace at most this many calls per second
+		 */
+		public static void sampling(int everyN, int maxPerSecond) {
+			sampleEvery = Math.max(1, everyN);
+			DebugLog.maxPerSecond = Math.max(0, maxPerSecond);
+		}
+
+		/**
+		 * @param capacity number of traces kept (default 1024), clears the buffer
+		 */
+		public static void capacity(int capacity) {
+			lock.lock();
+			try {
+				ring = new String[Math.max(1, capacity)];
+				next = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @param allowEcho true (default) to also print each trace to System.out,
+		 *                  false to only keep traces in the buffer
+		 */
+		public static void echo(boolean allowEcho) {
+			echo = allowEcho;
+		}
+
+		/**
+		 * @return the traces in the buffer, oldest first
+		 */
+		public static List<String> entries() {
+			lock.lock();
+			try {
+				List<String> entries = new ArrayList<>();
+				for (long i = Math.max(0, next - ring.length); i < next; i++) {
+					entries.add(ring[(int) (i % ring.length)]);
+				}
+				return entries;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Prints the traces in the buffer, oldest first.
+		 */
+		public static void dump(PrintStream out) {
+			entries().forEach(out::println);
+		}
+
+		public static void clear() {
+			capacity(ring.length);
+		}
+
+		static boolean sample() {
+			if (calls.getAndIncrement() % sampleEvery != 0) {
+				return false;
+			}
+			long now = System.nanoTime() / 1_000_000_000L;
+			long current = second.get();
+			if (current != now && second.compareAndSet(current, now)) {
+				traced.set(0);
+			}
+			return traced.incrementAndGet() <= maxPerSecond;
+		}
+
+		static void add(String entry) {
+			lock.lock();
+			try {
+				ring[(int) (next++ % ring.length)] = entry;
+			} finally {
+				lock.unlock();
+			}
+			if (echo) {
+				System.out.println(entry);
+			}
+		}
+	}
+
+	/**
+	 * The debug trace of one sampled call, added to {@link DebugLog} as one
+	 * entry when the call completes.
+	 */
+	static final class Trace {
+		final StringBuilder text = new StringBuilder();
+
+		/**
+		 * @return a trace of the current call of flex, or null when flex is not in
+		 *         debug mode or the call is not sampled
+		 */
+		static Trace start(HttpFlex flex) {
+			Object requestBody = flex.debugBody;
+			flex.debugBody = null;
+			if (!flex.debug || !DebugLog.sample()) {
+				return null;
+			}
+			Trace trace = new Trace();
+			trace.text.append(Instant.now()).append(' ').append(Thread.currentThread().getName());
+			StackWalker.getInstance().walk(frames -> frames.filter(frame -> !frame.getClassName().startsWith(HttpFlex.class.getName())).findFirst()).ifPresent(frame -> trace.line("From: " + frame.getClassName() + "." + frame.getMethodName() + ":" + frame.getLineNumber()));
+			trace.line("Request: " + flex.request.method() + " " + flex.request.uri());
+			if (requestBody != null) {
+				trace.line("Request Body: " + truncate(requestBody instanceof String string ? string : requestBody.toString()));
+			}
+			return trace;
+		}
+
+		static void error(Trace trace, Throwable error) {
+			if (trace != null) {
+				trace.line("Error: " + error);
+				trace.commit();
+			}
+		}
+
+		static String truncate(String text) {
+			return text.length() > 200 ? text.substring(0, 200) + "..." : text;
+		}
+
+		void line(String line) {
+			text.append("\n  ").append(line);
+		}
+
+		void commit() {
+			DebugLog.add(text.toString());
+		}
+	}
+
+	/**
+	 * Built-in {@link Metrics} without dependencies. Keeps, per method, host and
+	 * status class ("2xx" ... "5xx", or "error" for failed attempts), striped
+	 * {@link LongAdder} counters and two {@link Histogram}s: time to response
+	 * headers and total time. Recording is lock-free.
+	 */
+	public static final class MetricsRegistry implements Metrics {
+		final Map<Tags, Stats> stats = new ConcurrentHashMap<>();
+		final Map<Tags, LongAdder> retries = new ConcurrentHashMap<>();
+
+		private MetricsRegistry() {
+		}
+
+		public static MetricsRegistry instance() {
+			return new MetricsRegistry();
+		}
+
+		/**
+		 * @param method the request method
+		 * @param host   the request host (authority)
+		 * @param status the status class, e.g. "2xx", or "error"
+		 */
+		public record Tags(String method, String host, String status) {
+		}
+
+		/**
+		 * Counters and latency histograms of one {@link Tags}.
+		 */
+		public static final class Stats {
+			final LongAdder requests = new LongAdder();
+			final LongAdder bytesSent = new LongAdder();
+			final LongAdder bytesReceived = new LongAdder();
+			final Histogram headers = new Histogram();
+			final Histogram total = new Histogram();
+
+			public long requests() {
+				return requests.sum();
+			}
+
+			public long bytesSent() {
+				return bytesSent.sum();
+			}
+
+			public long bytesReceived() {
+				return bytesReceived.sum();
+			}
+
+			/**
+			 * @return time to response headers
+			 */
+			public Histogram.Snapshot headers() {
+				return headers.snapshot();
+			}
+
+			/**
+			 * @return total time of completed and failed attempts
+			 */
+			public Histogram.Snapshot total() {
+				return total.snapshot();
+			}
+
+			@Override
+			public String toString() {
+				return "requests=" + requests() + ", sent=" + bytesSent() + "B, received=" + bytesReceived() + "B, headers=" + headers() + ", total=" + total();
+			}
+		}
+
+		/**
+		 * @return a live view of the statistics of every tags seen so far
+		 */
+		public Map<Tags, Stats> stats() {
+			return Collections.unmodifiableMap(stats);
+		}
+
+		/**
+		 * @return the number of retries scheduled per method and host, with status
+		 *         null in tags
+		 */
+		public Map<Tags, Long> retries() {
+			return retries.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().sum()));
+		}
+
+		/**
+		 * @return the number of failed attempts to host
+		 */
+		public long failures(String host) {
+			return stats.entrySet().stream().filter(entry -> entry.getKey().host().equals(host) && entry.getKey().status().equals("error")).mapToLong(entry -> entry.getValue().requests()).sum();
+		}
+
+		public void clear() {
+			stats.clear();
+			retries.clear();
+		}
+
+		Stats stats(String method, String host, String status) {
+			return stats.computeIfAbsent(new Tags(method, host, status), key -> new Stats());
+		}
+
+		static String statusClass(int statusCode) {
+			return statusCode / 100 + "xx";
+		}
+
+		@Override
+		public void headers(String method, String host, int statusCode, long nanos) {
+			stats(method, host, statusClass(statusCode)).headers.record(nanos);
+		}
+
+		@Override
+		public void completed(String method, String host, int statusCode, long nanos, long bytesSent, long bytesReceived) {
+			Stats stats = stats(method, host, statusClass(statusCode));
+			stats.requests.increment();
+			stats.bytesSent.add(bytesSent);
+			stats.bytesReceived.add(bytesReceived);
+			stats.total.record(nanos);
+		}
+
+		@Override
+		public void failed(String method, String host, Throwable error, long nanos) {
+			Stats stats = stats(method, host, "error");
+			stats.requests.increment();
+			stats.total.record(nanos);
+		}
+
+		@Override
+		public void retried(String method, String host, int attempt) {
+			retries.computeIfAbsent(new Tags(method, host, null), key -> new LongAdder()).increment();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			stats.forEach((tags, stats) -> builder.append(tags.method()).append(' ').append(tags.host()).append(' ').append(tags.status()).append(": ").append(stats).append('\n'));
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Lock-free latency histogram with log-linear buckets: 8 buckets per power of
+	 * two, so a percentile is within 12.5% of the recorded value.
+	 */
+	public static final class Histogram {
+		static final int SUB_BITS = 3;
+		static final int SUB_COUNT = 1 << SUB_BITS;
+		final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+		final LongAdder count = new LongAdder();
+		final LongAdder sum = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+
+		/**
+		 * @param count number of recorded values
+		 * @param mean  mean in nanoseconds
+		 * @param p50   median in nanoseconds
+		 * @param p90   90th percentile in nanoseconds
+		 * @param p99   99th percentile in nanoseconds
+		 * @param max   largest value in nanoseconds
+		 */
+		public record Snapshot(long count, long mean, long p50, long p90, long p99, long max) {
+			@Override
+			public String toString() {
+				return String.format("{count=%d, mean=%.2fms, p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms}", count, mean / 1e6, p50 / 1e6, p90 / 1e6, p99 / 1e6, max / 1e6);
+			}
+		}
+
+		public void record(long nanos) {
+			long value = Math.max(0, nanos);
+			buckets.incrementAndGet(index(value));
+			count.increment();
+			sum.add(value);
+			max.accumulateAndGet(value, Math::max);
+		}
+
+		static int index(long value) {
+			if (value < SUB_COUNT) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+		}
+
+		/**
+		 * @return the largest value of bucket index
+		 */
+		static long upperBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			int shift = (index >>> SUB_BITS) - 1;
+			return ((long) (SUB_COUNT + (index & (SUB_COUNT - 1)) + 1) << shift) - 1;
+		}
+
+		/**
+		 * @param percentile the percentile, from 0 to 1
+		 * @return the upper bound of the bucket holding percentile, 0 when empty
+		 */
+		public long percentile(double percentile) {
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			return percentile(counts, total, percentile);
+		}
+
+		long percentile(long[] counts, long total, double percentile) {
+			long rank = Math.max(1, (long) Math.ceil(percentile * total));
+			for (int i = 0; i < counts.length; i++) {
+				rank -= counts[i];
+				if (rank <= 0) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return 0;
+		}
+
+		public Snapshot snapshot() {
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			return new Snapshot(total, total == 0 ? 0 : sum.sum() / Math.max(1, count.sum()), percentile(counts, total, 0.5), percentile(counts, total, 0.9), percentile(counts, total, 0.99), max.get());
+		}
+	}
+
+	/**
+	 * Load generator on top of the HttpFlex request API. Each request is one call
+	 * of a {@link Callable}, e.g. {@code () -> template.get("users/1", User.class)},
+	 * which fails when it throws, returns null, or returns a {@link Response} or
+	 * {@link HttpResponse} with a status of 400 or more.
+	 * <p>
+	 * In closed-loop mode, users virtual threads each send their next request as
+	 * soon as the previous one completes. In open-loop mode, requests are
+	 * scheduled at a fixed rate whatever the response times, and latency is
+	 * measured from the intended send time rather than the actual one, so time
+	 * spent queued behind slow responses (coordinated omission) is counted.
+	 */
+	public static final class LoadRunner {
+		final Callable<?> call;
+		int users = 1;
+		double rate;
+		int maxInFlight = 10_000;
+		Duration duration = Duration.ofSeconds(10);
+		Duration warmup = Duration.ZERO;
+
+		private LoadRunner(Callable<?> call) {
+			this.call = call;
+		}
+
+		/**
+		 * @param call sends one request
+		 */
+		public static LoadRunner instance(Callable<?> call) {
+			return new LoadRunner(call);
+		}
+
+		/**
+		 * @param users number of concurrent users, each sending back to back
+		 */
+		public LoadRunner closedLoop(int users) {
+			this.users = Math.max(1, users);
+			this.rate = 0;
+			return this;
+		}
+
+		/**
+		 * @param requestsPerSecond the fixed rate at which requests are sent
+		 */
+		public LoadRunner openLoop(double requestsPerSecond) {
+			this.rate = requestsPerSecond;
+			return this;
+		}
+
+		/**
+		 * @param maxInFlight most requests in flight in open-loop mode (default
+		 *                    10000), later requests wait and that wait counts in
+		 *                    their latency
+		 */
+		public LoadRunner maxInFlight(int maxInFlight) {
+			this.maxInFlight = Math.max(1, maxInFlight);
+			return this;
+		}
+
+		public LoadRunner duration(Duration duration) {
+			this.duration = duration;
+			return this;
+		}
+
+		/**
+		 * @param warmup time to run before measuring, not included in the report
+		 */
+		public LoadRunner warmup(Duration warmup) {
+			this.warmup = warmup;
+			return this;
+		}
+
+		/**
+		 * Runs the warmup, then the measured phase.
+		 *
+		 * @return the report of the measured phase
+		 */
+		public Report run() throws InterruptedException {
+			if (warmup.compareTo(Duration.ZERO) > 0) {
+				phase(warmup);
+			}
+			return phase(duration);
+		}
+
+		Report phase(Duration length) throws InterruptedException {
+			Histogram latency = new Histogram();
+			LongAdder errors = new LongAdder();
+			long start = System.nanoTime();
+			long end = start + length.toNanos();
+			try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				if (rate > 0) {
+					Semaphore inFlight = new Semaphore(maxInFlight);
+					double interval = 1e9 / rate;
+					for (long i = 0; ; i++) {
+						long intended = start + (long) (i * interval);
+						if (intended - end >= 0) {
+							break;
+						}
+						for (long wait = intended - System.nanoTime(); wait > 0; wait = intended - System.nanoTime()) {
+							LockSupport.parkNanos(wait);
+						}
+						inFlight.acquire();
+						executor.execute(() -> {
+							try {
+								send(latency, errors, intended);
+							} finally {
+								inFlight.release();
+							}
+						});
+					}
+				} else {
+					for (int user = 0; user < users; user++) {
+						executor.execute(() -> {
+							while (System.nanoTime() - end < 0) {
+								send(latency, errors, System.nanoTime());
+							}
+						});
+					}
+				}
+			}
+			return new Report(rate > 0 ? "open loop " + rate + "/s" : "closed loop " + users + " users", Duration.ofNanos(System.nanoTime() - start), errors.sum(), latency);
+		}
+
+		/**
+		 * Sends one request and records its latency from since.
+		 */
+		void send(Histogram latency, LongAdder errors, long since) {
+			boolean ok;
+			try {
+				ok = switch (call.call()) {
+					case null -> false;
+					case Response<?> response -> response.statusCode() >= 0 && response.statusCode() < 400;
+					case HttpResponse<?> response -> response.statusCode() < 400;
+					default -> true;
+				};
+			} catch (Exception e) {
+				ok = false;
+			}
+			latency.record(System.nanoTime() - since);
+			if (!ok) {
+				errors.increment();
+			}
+		}
+
+		/**
+		 * Result of {@link LoadRunner#run()}.
+		 *
+		 * @param mode    the load mode
+		 * @param elapsed duration of the measured phase, including the completion
+		 *                of the last requests
+		 * @param errors  number of failed requests
+		 * @param latency latency of every request, successful or not
+		 */
+		public record Report(String mode, Duration elapsed, long errors, Histogram latency) {
+			public long requests() {
+				return latency.count.sum();
+			}
+
+			/**
+			 * @return completed requests per second
+			 */
+			public double throughput() {
+				return requests() * 1e9 / Math.max(1, elapsed.toNanos());
+			}
+
+			/**
+			 * @return failed requests over all requests, from 0 to 1
+			 */
+			public double errorRate() {
+				return requests() == 0 ? 0 : (double) errors / requests();
+			}
+
+			public void print(PrintStream out) {
+				out.print(this);
+			}
+
+			@Override
+			public String toString() {
+				StringBuilder builder = new StringBuilder();
+				builder.append(String.format("%s: %d requests in %.1fs, %.1f req/s, %.2f%% errors%n", mode, requests(), elapsed.toNanos() / 1e9, throughput(), errorRate() * 100));
+				builder.append(String.format("%10s %12s%n", "percentile", "latency(ms)"));
+				for (double percentile : new double[]{0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 0.9999}) {
+					builder.append(String.format("%10s %12.3f%n", BigDecimal.valueOf(percentile * 100).stripTrailingZeros().toPlainString(), latency.percentile(percentile) / 1e6));
+				}
+				builder.append(String.format("%10s %12.3f%n", "max", latency.max.get() / 1e6));
+				return builder.toString();
+			}
+		}
+	}
+
+	/**
+	 * Sets the preferred HTTP protocol version for HTTP requests.
+	 *
+	 * @param version The {@link HttpClient.Version} (e.g., HTTP_1_1, HTTP_2).
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex version(HttpClient.Version version) {
+		clientConfig = clientConfig.withVersion(version);
+		return this;
+	}
+
+	/**
+	 * Sets the executor used by the underlying {@link HttpClient} for
+	 * asynchronous and dependent tasks.
+	 *
+	 * @param executor The {@link Executor}, or null for the client default.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex executor(Executor executor) {
+		clientConfig = clientConfig.withExecutor(executor);
+		return this;
+	}
+
+	/**
+	 * Runs the tasks of the shared client (sending, response callbacks and
+	 * dependent stages of the async API) on virtual threads, one per task. The
+	 * blocking API waits on a {@link CompletableFuture} and HttpFlex guards its
+	 * shared state with {@link ReentrantLock}, never {@code synchronized}, so a
+	 * blocking call from a virtual thread parks it without pinning its carrier:
+	 * call get/post/method from virtual threads to run very many calls at once.
+	 *
+	 * @param enable true for virtual threads, false for the client default
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex virtualThreads(boolean enable) {
+		clientConfig = clientConfig.withExecutor(enable ? blockingExecutor : null);
+		return this;
+	}
+
+	/**
+	 * Sets whether new instances of HttpFlex, including those of the download
+	 * helpers and {@link BulkDownload}, use {@link #virtualThreads(boolean)}.
+	 *
+	 * @param enable true for virtual threads
+	 */
+	public static void defaultVirtualThreads(boolean enable) {
+		defaultVirtualThreads.set(enable);
+	}
+
+	/**
+	 * Sets the redirect policy for HTTP requests.
+	 *
+	 * @param redirect The {@link HttpClient.Redirect} policy.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex followRedirects(HttpClient.Redirect redirect) {
+		clientConfig = clientConfig.withRedirect(redirect);
+		return this;
+	}
+
+	/**
+	 * Sets the timeout to establish a connection. Clients are shared per
+	 * {@link ClientConfig}, so each distinct timeout uses its own client.
+	 *
+	 * @param timeout The connect timeout, or null for none.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex connectTimeout(Duration timeout) {
+		clientConfig = clientConfig.withConnectTimeout(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets the timeout of each request attempt, from sending it until the
+	 * response headers are received. A request that times out fails with an
+	 * {@link HttpTimeoutException}, which {@link RetryPolicy} retries.
+	 *
+	 * @param timeout The request timeout.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex timeout(Duration timeout) {
+		requestBuilder.timeout(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets the overall time budget of each call, covering retries, redirects
+	 * and reading the response body. When it expires the in-flight exchange is
+	 * cancelled and the call throws (or its future completes with) a
+	 * {@link DeadlineExceededException} instead of returning null.
+	 *
+	 * @param budget The deadline of each call from its start, or null for none.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex deadline(Duration budget) {
+		deadline = budget;
+		return this;
+	}
+
+	/**
+	 * Thrown when the budget set with {@link HttpFlex#deadline(Duration)}
+	 * expires before a call completes.
+	 */
+	public static class DeadlineExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public DeadlineExceededException(Duration budget) {
+			super("deadline of " + budget.toMillis() + "ms exceeded");
+		}
+	}
+
+	/**
+	 * Rethrows the {@link DeadlineExceededException} or
+	 * {@link LimitRejectedException} in the causes of error, if any, so that
+	 * callers can shed load instead of getting null.
+	 */
+	static void failFast(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof DeadlineExceededException || cause instanceof LimitRejectedException) {
+				throw (RuntimeException) cause;
+			}
+		}
+	}
+
+	/**
+	 * The expiry of one call with a {@link HttpFlex#deadline(Duration)}.
+	 */
+	record Deadline(Duration budget, long expiresAt) {
+		/**
+		 * @return a deadline expiring budget from now, or null when budget is null
+		 */
+		static Deadline of(Duration budget) {
+			return budget == null ? null : new Deadline(budget, System.nanoTime() + budget.toNanos());
+		}
+
+		long remainingNanos() {
+			return expiresAt - System.nanoTime();
+		}
+
+		boolean expired() {
+			return remainingNanos() <= 0;
+		}
+
+		/**
+		 * @return request with its timeout capped to the remaining budget
+		 */
+		HttpRequest cap(HttpRequest request) {
+			Duration remaining = Duration.ofNanos(Math.max(1_000_000, remainingNanos()));
+			if (request.timeout().filter(timeout -> timeout.compareTo(remaining) <= 0).isPresent()) {
+				return request;
+			}
+			return HttpRequest.newBuilder(request, (name, value) -> true).timeout(remaining).build();
+		}
+
+		/**
+		 * @return handler whose body subscriber fails with a
+		 *         {@link DeadlineExceededException} when the deadline expires
+		 *         before the body is fully read
+		 */
+		<T> BodyHandler<T> bound(BodyHandler<T> handler) {
+			return responseInfo -> new DeadlineSubscriber<>(handler.apply(responseInfo), this);
+		}
+
+		DeadlineExceededException exceeded() {
+			return new DeadlineExceededException(budget);
+		}
+	}
+
+	/**
+	 * Forwards to downstream until the deadline expires, then cancels the
+	 * subscription, which aborts the exchange, and signals a
+	 * {@link DeadlineExceededException} to downstream so that a blocked reader
+	 * of a streamed body wakes up.
+	 */
+	static final class DeadlineSubscriber<T> implements BodySubscriber<T> {
+		final BodySubscriber<T> downstream;
+		final Deadline deadline;
+		final ReentrantLock lock = new ReentrantLock();
+		Flow.Subscription subscription;
+		ScheduledFuture<?> timer;
+		boolean done;
+
+		DeadlineSubscriber(BodySubscriber<T> downstream, Deadline deadline) {
+			this.downstream = downstream;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public CompletionStage<T> getBody() {
+			return downstream.getBody();
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			downstream.onSubscribe(subscription);
+			ScheduledFuture<?> scheduled = scheduler.schedule(this::expire, Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+			lock.lock();
+			try {
+				timer = scheduled;
+				if (done) {
+					scheduled.cancel(false);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			lock.lock();
+			try {
+				if (!done) {
+					downstream.onNext(item);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			finish(() -> downstream.onError(throwable));
+		}
+
+		@Override
+		public void onComplete() {
+			finish(downstream::onComplete);
+		}
+
+		void expire() {
+			finish(() -> {
+				downstream.onError(deadline.exceeded());
+				subscription.cancel();
+			});
+		}
+
+		void finish(Runnable signal) {
+			lock.lock();
+			try {
+				if (!done) {
+					done = true;
+					if (timer != null) {
+						timer.cancel(false);
+					}
+					signal.run();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the shared {@link HttpClient} matching the current client
+	 * settings of this instance, see {@link ClientPool}.
+	 *
+	 * @return the pooled {@link HttpClient}
+	 */
+	public HttpClient client() {
+		return ClientPool.get(clientConfig);
+	}
+
+	/**
+	 * Settings that identify one shared {@link HttpClient} in {@link ClientPool}.
+	 * Two HttpFlex instances with equal settings use the same client, so they
+	 * share its connection pool, keep-alive connections and HTTP/2 sessions.
+	 *
+	 * @param proxy          proxy server address, null for no proxy
+	 * @param version        preferred HTTP version, null for the client default
+	 * @param executor       executor for asynchronous tasks, null for the client default
+	 * @param redirect       redirect policy, null for the client default
+	 * @param connectTimeout timeout to establish a connection, null for none
+	 */
+	public record ClientConfig(InetSocketAddress proxy, HttpClient.Version version, Executor executor,
+	                           HttpClient.Redirect redirect, Duration connectTimeout) {
+		public static final ClientConfig DEFAULT = new ClientConfig(null, null, null, null, null);
+
+		public ClientConfig withProxy(InetSocketAddress proxy) {
+			return new ClientConfig(proxy, version, executor, redirect, connectTimeout);
+		}
+
+		public ClientConfig withVersion(HttpClient.Version version) {
+			return new ClientConfig(proxy, version, executor, redirect, connectTimeout);
+		}
+
+		public ClientConfig withExecutor(Executor executor) {
+			return new ClientConfig(proxy, version, executor, redirect, connectTimeout);
+		}
+
+		public ClientConfig withRedirect(HttpClient.Redirect redirect) {
+			return new ClientConfig(proxy, version, executor, redirect, connectTimeout);
+		}
+
+		public ClientConfig withConnectTimeout(Duration connectTimeout) {
+			return new ClientConfig(proxy, version, executor, redirect, connectTimeout);
+		}
+
+		/**
+		 * @return these settings with the client running its tasks on one virtual
+		 *         thread per task, see {@link HttpFlex#virtualThreads(boolean)}
+		 */
+		public ClientConfig withVirtualThreads() {
+			return withExecutor(blockingExecutor);
+		}
+
+		HttpClient build() {
+			HttpClient.Builder builder = HttpClient.newBuilder();
+			if (proxy != null) {
+				builder.proxy(ProxySelector.of(proxy));
+			}
+			if (version != null) {
+				builder.version(version);
+			}
+			if (executor != null) {
+				builder.executor(executor);
+			}
+			if (redirect != null) {
+				builder.followRedirects(redirect);
+			}
+			if (connectTimeout != null) {
+				builder.connectTimeout(connectTimeout);
+			}
+			return builder.build();
+		}
+	}
+
+	/**
+	 * Registry of long-lived {@link HttpClient} instances keyed by
+	 * {@link ClientConfig}. Clients are created on first use and kept until
+	 * {@link #close()}, {@link #shutdownNow()} or {@link #evict(ClientConfig)}.
+	 */
+	public static final class ClientPool {
+		static final Map<ClientConfig, HttpClient> clients = new ConcurrentHashMap<>();
+		static final AtomicBoolean shutdownHook = new AtomicBoolean();
+
+		private ClientPool() {
+		}
+
+		/**
+		 * @param config the client settings
+		 * @return the shared client for config, created if absent
+		 */
+		public static HttpClient get(ClientConfig config) {
+			return clients.computeIfAbsent(config, ClientConfig::build);
+		}
+
+		/**
+		 * @return number of clients currently pooled
+		 */
+		public static int size() {
+			return clients.size();
+		}
+
+		/**
+		 * Removes the client of config from the pool and closes it gracefully.
+		 *
+		 * @param config the client settings
+		 */
+		public static void evict(ClientConfig config) {
+			HttpClient client = clients.remove(config);
+			if (client != null) {
+				client.close();
+			}
+		}
+
+		/**
+		 * Closes all pooled clients, waiting for in-flight requests to complete.
+		 */
+		public static void close() {
+			clients.keySet().forEach(ClientPool::evict);
+		}
+
+		/**
+		 * Closes all pooled clients immediately, aborting in-flight requests.
+		 */
+		public static void shutdownNow() {
+			clients.keySet().forEach(config -> {
+				HttpClient client = clients.remove(config);
+				if (client != null) {
+					client.shutdownNow();
+				}
+			});
+		}
+
+		/**
+		 * Registers a JVM shutdown hook that calls {@link #shutdownNow()}.
+		 */
+		public static void shutdownOnExit() {
+			if (shutdownHook.compareAndSet(false, true)) {
+				Runtime.getRuntime().addShutdownHook(new Thread(ClientPool::shutdownNow, "HttpFlex-ClientPool-shutdown"));
+			}
+		}
+	}
+
+	/**
+	 * Sets custom headers for HTTP requests.
+	 *
+	 * @param keyValue An array of key-value pairs representing headers.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex header(String... keyValue) {
+		for (int i = 0; i < keyValue.length; i += 2) {
+			replacingCodecAccept(keyValue[i]);
+		}
+		requestBuilder.headers(keyValue);
+		return this;
+	}
+
+	/**
+	 * Sets a single header for HTTP requests.
+	 *
+	 * @param name  The name of the header.
+	 * @param value The value of the header.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex header(String name, String value) {
+		replacingCodecAccept(name);
+		requestBuilder.header(name, value);
+		return this;
+	}
+
+	/**
+	 * Removes the Accept header set by {@link #codecs(Codec...)} when the caller
+	 * sets its own.
+	 */
+	void replacingCodecAccept(String name) {
+		if (codecAccept != null && name.equalsIgnoreCase("Accept")) {
+			codecAccept = null;
+			removeHeader("Accept");
+		}
+	}
+
+	/**
+	 * Sets a single header for HTTP requests.
+	 *
+	 * @param token The value of the bearer access token.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex bearer(String token) {
+		requestBuilder.header("Authorization", "Bearer " + token);
+		return this;
+	}
+
+	/**
+	 * Sets the Content-Type header for HTTP requests.
+	 *
+	 * @param type The {@code ContentType} enum value representing the xpathContent type.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex header(ContentType type) {
+		return header(type.header());
+	}
+
+	/**
+	 * Sets a single header for HTTP requests.
+	 *
+	 * @param header The header, e.g. {@link Header#contentType(String)}.
+	 * @return This {@code HttpFlex} instance for method chaining.
+	 */
+	public HttpFlex header(Header header) {
+		return header(header.name(), header.value());
+	}
+
+	/**
+	 * Snapshots the current request settings of this instance (URI, headers,
+	 * timeout) and its client, codec, compression, cache, retry, deadline,
+	 * metrics and limiter settings into an immutable {@link Template}. Later changes to this
+	 * instance do not affect the template.
+	 *
+	 * @return the template
+	 */
+	public Template template() {
+		return new Template(requestBuilder.copy().GET().build(), clientConfig, gson(), debug, compression, compressThreshold, cache, retryPolicy, deadline, metrics, limiter, codecs);
+	}
+
+	/**
+	 * Immutable, prebuilt request settings that can be shared between threads.
+	 * Each call derives its own request from prototype and runs on its own
+	 * HttpFlex instance, so calls never share mutable state, and each returns
+	 * its {@link Response} instead of storing it.
+	 * <p>
+	 * Paths given to the calls are resolved against the URI of prototype, e.g.
+	 * "users/1" against "https://example.com/api/".
+	 */
+	public record Template(HttpRequest prototype, ClientConfig clientConfig, Gson gson, boolean debug, boolean compression,
+	                       int compressThreshold, HttpCache cache, RetryPolicy retryPolicy, Duration deadline, Metrics metrics,
+	                       HostLimiter limiter, List<Codec> codecs) {
+		/**
+		 * @return a new HttpFlex for one call to the URI of prototype
+		 */
+		public HttpFlex call() {
+			return call(null);
+		}
+
+		/**
+		 * @param path the path resolved against the URI of prototype, or null
+		 * @return a new HttpFlex for one call to path
+		 */
+		public HttpFlex call(String path) {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(prototype, (name, value) -> true);
+			if (path != null) {
+				builder.uri(prototype.uri().resolve(path));
+			}
+			HttpFlex flex = new HttpFlex(builder);
+			flex.clientConfig = clientConfig;
+			flex.gson = gson;
+			flex.debug = debug;
+			flex.compression = compression;
+			flex.compressThreshold = compressThreshold;
+			flex.cache = cache;
+			flex.retryPolicy = retryPolicy;
+			flex.deadline = deadline;
+			flex.metrics = metrics;
+			flex.limiter = limiter;
+			flex.codecs(codecs.toArray(Codec[]::new));
+			return flex;
+		}
+
+		public <R> Response<R> get(Type type) {
+			return get(null, type);
+		}
+
+		public <R> Response<R> get(String path, Type type) {
+			HttpFlex flex = call(path);
+			R body = flex.get(type);
+			return new Response<>(flex.httpResponse, body);
+		}
+
+		public <T, R> Response<R> post(String path, T requestBody, Type type) {
+			return method("POST", path, requestBody, type);
+		}
+
+		public <R> Response<R> delete(String path, Type type) {
+			return method("DELETE", path, null, type);
+		}
+
+		/**
+		 * Same as {@link HttpFlex#method(String, Object, Type)} on a new call to path.
+		 */
+		public <T, R> Response<R> method(String method, String path, T requestBody, Type type) {
+			HttpFlex flex = call(path);
+			R body = flex.method(method, requestBody, type);
+			return new Response<>(flex.httpResponse, body);
+		}
+
+		public <R> CompletableFuture<Response<R>> getAsync(String path, Type type) {
+			HttpFlex flex = call(path);
+			return flex.<R>getAsync(type).thenApply(body -> new Response<>(flex.httpResponse, body));
+		}
+
+		/**
+		 * Same as {@link HttpFlex#methodAsync(String, Object, Type)} on a new call to
+		 * path.
+		 */
+		public <T, R> CompletableFuture<Response<R>> methodAsync(String method, String path, T requestBody, Type type) {
+			HttpFlex flex = call(path);
+			return flex.<T, R>methodAsync(method, requestBody, type).thenApply(body -> new Response<>(flex.httpResponse, body));
+		}
+	}
+
+	/**
+	 * The result of one {@link Template} call.
+	 *
+	 * @param response the response, null when the request failed
+	 * @param body     the decoded body, null when the request failed
+	 */
+	public record Response<R>(HttpResponse<?> response, R body) {
+		/**
+		 * @return the status code, or -1 when the request failed
+		 */
+		public int statusCode() {
+			return response == null ? -1 : response.statusCode();
+		}
+	}
+
+	/**
+	 * Sends many requests of a {@link Template} concurrently as streams of one
+	 * HTTP/2 connection, with at most maxConcurrentStreams in flight, and returns
+	 * their results in input order.
+	 * <p>
+	 * The JDK client opens one connection per origin when a single request is
+	 * sent first, and multiplexes later requests over it, so the first call is
+	 * sent alone before the others. Over TLS the protocol is negotiated with
+	 * ALPN. The JDK client has no h2c prior knowledge mode: cleartext HTTP/2 is
+	 * set up by an Upgrade on the first request, and only a request without body
+	 * is upgraded, so {@link #priorKnowledge(boolean)} sends a body-less HEAD to
+	 * the template URI first to upgrade the connection before the batch.
+	 */
+	public static final class Batch {
+		final Template template;
+		int maxConcurrentStreams = 100;
+		boolean priorKnowledge;
+
+		private Batch(Template template) {
+			this.template = template;
+		}
+
+		/**
+		 * @param template base URI, headers and settings of every call
+		 */
+		public static Batch instance(Template template) {
+			return new Batch(template);
+		}
+
+		/**
+		 * @param maxConcurrentStreams most requests in flight (default 100), keep at
+		 *                             or under the SETTINGS_MAX_CONCURRENT_STREAMS
+		 *                             of the server
+		 */
+		public Batch maxConcurrentStreams(int maxConcurrentStreams) {
+			this.maxConcurrentStreams = Math.max(1, maxConcurrentStreams);
+			return this;
+		}
+
+		/**
+		 * @param priorKnowledge true for a cleartext server known to speak HTTP/2
+		 */
+		public Batch priorKnowledge(boolean priorKnowledge) {
+			this.priorKnowledge = priorKnowledge;
+			return this;
+		}
+
+		/**
+		 * One request of a batch.
+		 *
+		 * @param method the HTTP method
+		 * @param path   the path resolved against the template URI, or null
+		 * @param body   the request body, see {@link HttpFlex#post(Object, Type)}
+		 * @param type   the type of the response body
+		 */
+		public record Call(String method, String path, Object body, Type type) {
+			public static Call get(String path, Type type) {
+				return new Call("GET", path, null, type);
+			}
+
+			public static Call post(String path, Object body, Type type) {
+				return new Call("POST", path, body, type);
+			}
+		}
+
+		/**
+		 * Sends calls and waits for all of them.
+		 *
+		 * @return the result of each call, in the order of calls
+		 */
+		public List<Response<Object>> send(List<Call> calls) {
+			return sendAsync(calls).join();
+		}
+
+		/**
+		 * Sends calls without blocking.
+		 *
+		 * @return a {@link CompletableFuture} of the result of each call, in the
+		 *         order of calls. A failed call has a {@link Response} with null
+		 *         response and body.
+		 */
+		public CompletableFuture<List<Response<Object>>> sendAsync(List<Call> calls) {
+			ClientConfig config = template.clientConfig().withVersion(HttpClient.Version.HTTP_2);
+			List<CompletableFuture<Response<Object>>> results = new ArrayList<>(calls.size());
+			for (int i = 0; i < calls.size(); i++) {
+				results.add(new CompletableFuture<>());
+			}
+			AtomicInteger next = new AtomicInteger();
+			Runnable fanOut = () -> {
+				for (int i = 0; i < Math.min(maxConcurrentStreams, calls.size()); i++) {
+					sendNext(calls, results, next, config);
+				}
+			};
+			CompletableFuture<?> connected;
+			if (priorKnowledge) {
+				HttpFlex probe = template.call();
+				probe.clientConfig = config;
+				connected = probe.exchange(probe.requestBuilder.method("HEAD", BodyPublishers.noBody()).build(), BodyHandlers.discarding()).handle((response, error) -> null);
+			} else if (!calls.isEmpty()) {
+				connected = send(calls.get(next.getAndIncrement()), config).thenAccept(results.getFirst()::complete);
+			} else {
+				connected = CompletableFuture.completedFuture(null);
+			}
+			connected.thenRun(fanOut);
+			return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).thenApply(ignored -> results.stream().map(CompletableFuture::join).toList());
+		}
+
+		/**
+		 * Sends the next unsent call, then the one after it when it completes, so
+		 * each running chain keeps one stream busy. Calls that complete at once
+		 * (a cache hit, a failure) are followed in a loop rather than by
+		 * recursion.
+		 */
+		void sendNext(List<Call> calls, List<CompletableFuture<Response<Object>>> results, AtomicInteger next, ClientConfig config) {
+			for (int index = next.getAndIncrement(); index < calls.size(); index = next.getAndIncrement()) {
+				CompletableFuture<Response<Object>> sent = send(calls.get(index), config);
+				if (!sent.isDone()) {
+					int pending = index;
+					sent.thenAccept(response -> {
+						results.get(pending).complete(response);
+						sendNext(calls, results, next, config);
+					});
+					return;
+				}
+				results.get(index).complete(sent.join());
+			}
+		}
+
+		/**
+		 * @return the result of call, with null response and body when it fails,
+		 *         including when it cannot be sent at all
+		 */
+		CompletableFuture<Response<Object>> send(Call call, ClientConfig config) {
+			try {
+				HttpFlex flex = template.call(call.path());
+				flex.clientConfig = config;
+				return flex.methodAsync(call.method(), call.body(), call.type()).handle((body, error) -> error == null ? new Response<>(flex.httpResponse, body) : new Response<>(null, null));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				return CompletableFuture.completedFuture(new Response<>(null, null));
+			}
+		}
+	}
+
+	/**
+	 * Representation of a multipart-formdata request, use to send in
+	 * {@link HttpFlex#post(Object)}. The encoded header of each part is cached
+	 * with its body when immutable (byte[], String, and {@link Path} while its
+	 * size and modified time are unchanged), so a put only re-encodes that part.
+	 * Use {@link #copy()} to send a template form with a few fields changed.
+	 */
+	public record Multipart(String boundary, Map<String, Object> data, Map<String, Part> parts,
+	                        AtomicReference<byte[]> requestBody) implements AutoCloseable {
+		static final byte[] CRLF = {'\r', '\n'};
+
+		/**
+		 * Encoded part of a form-multipart.
+		 *
+		 * @param header   the encoded part header
+		 * @param body     the part data
+		 * @param bytes    the encoded body of an immutable part, null when not read
+		 *                 yet or not cacheable
+		 * @param size     the file size bytes were read at, for a {@link Path} part
+		 * @param modified the file modified time bytes were read at, for a
+		 *                 {@link Path} part
+		 */
+		record Part(byte[] header, Object body, byte[] bytes, long size, long modified) {
+			static Part of(String header, Object body) {
+				return new Part(header.getBytes(StandardCharsets.UTF_8), body, switch (body) {
+					case byte[] bytes -> bytes;
+					case String string -> string.getBytes(StandardCharsets.UTF_8);
+					default -> null;
+				}, -1, -1);
+			}
+		}
+
+		/**
+		 * Constructs a new Multipart instance with a randomly generated boundary.
+		 */
+		public static Multipart instance() {
+			return instance("-FormBoundary" + Long.toHexString(System.currentTimeMillis()));
+		}
+
+		/**
+		 * Constructs a new Multipart instance with a randomly generated boundary. And
+		 * put chunk of data to instance form-multipart.
+		 *
+		 * @param map Map.Entry Key is multipart-formdata name
+		 *            Map.Entry Value is multipart-formdata data (can be a {@link String},
+		 *            {@link InputStream}, byte[], or any other class will be
+		 *            automatically convert to Json string by
+		 *            {@link HttpFlex#defaultGson})
+		 */
+		public static Multipart instance(Map<String, ?> map) {
+			return instance("-FormBoundary" + Long.toHexString(System.currentTimeMillis())).putAll(map);
+		}
+
+		/**
+		 * Constructs a new multipart-formdata instance with a custom boundary.
+		 *
+		 * @param boundary is multipart-formdata boundary
+		 */
+		public static Multipart instance(String boundary) {
+			return new Multipart(boundary, new LinkedHashMap<>(), new HashMap<>(), new AtomicReference<>());
+		}
+
+		/**
+		 * Constructs a new multipart-formdata instance with a custom boundary. And put
+		 * chunk of data to instance form-multipart.
+		 *
+		 * @param boundary is multipart-formdata boundary
+		 * @param map      Map.Entry Key is multipart-formdata name
+		 *                 Map.Entry Value is multipart-formdata data (can be a {@link String},
+		 *                 {@link InputStream}, byte[], or any other class will be
+		 *                 automatically convert to Json string by
+		 *                 {@link HttpFlex#defaultGson})
+		 */
+		public static Multipart instance(String boundary, Map<String, ?> map) {
+			return instance(boundary).putAll(map);
+		}
+
+		/**
+		 * Put chunk of data to current form-multipart.
+		 *
+		 * @param map Map.Entry Key is multipart-formdata name
+		 *            Map.Entry Value is multipart-formdata data (can be a {@link String},
+		 *            {@link InputStream}, byte[], or any other class will be
+		 *            automatically convert to Json string by
+		 *            {@link HttpFlex#defaultGson})
+		 */
+		public <T> Multipart putAll(Map<String, ?> map) {
+			map.forEach(this::put);
+			return this;
+		}
+
+		/**
+		 * Put data to current form-multipart.
+		 *
+		 * @param name is multipart-formdata name
+		 * @param body is multipart-formdata data (can be a {@link String},
+		 *             {@link InputStream}, byte[], or any other class will be
+		 *             automatically convert to Json string by
+		 *             {@link HttpFlex#defaultGson})
+		 */
+		public <T> Multipart put(String name, T body) {
+			data.put(name, body);
+			parts.remove(name);
+			requestBody.set(null);
+			return this;
+		}
+
+		/**
+		 * Copies this form sharing the cached parts, so putting a few fields in the
+		 * copy only encodes those. The parts of this form are encoded first when
+		 * they are not cached yet, so copies of a form that was never built share
+		 * them too. {@link Path} parts are not read, they are streamed when each
+		 * copy is sent. {@link InputStream} parts are shared, not copied.
+		 *
+		 * @return a new form-multipart with the same boundary and data
+		 */
+		public Multipart copy() {
+			data.keySet().forEach(this::part);
+			return new Multipart(boundary, new LinkedHashMap<>(data), new HashMap<>(parts), new AtomicReference<>(requestBody.get()));
+		}
+
+		Part part(String name) {
+			return parts.computeIfAbsent(name, key -> Part.of(partHeader(key, data.get(key)), data.get(key)));
+		}
+
+		/**
+		 * @return the body of part, from cache when immutable
+		 */
+		byte[] content(String name, Part part) throws IOException {
+			return switch (part.body()) {
+				case Path path -> {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					long modified = attributes.lastModifiedTime().toMillis();
+					if (part.bytes() != null && part.size() == attributes.size() && part.modified() == modified) {
+						yield part.bytes();
+					}
+					byte[] bytes = Files.readAllBytes(path);
+					parts.put(name, new Part(part.header(), path, bytes, attributes.size(), modified));
+					yield bytes;
+				}
+				case InputStream inputStream -> inputStream.readAllBytes();
+				case Object ignored when part.bytes() != null -> part.bytes();
+				default -> {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					defaultCodec().write(part.body(), out);
+					yield out.toByteArray();
+				}
+			};
+		}
+
+		String partHeader(String name, Object body) {
+			return "--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"" + switch (body) {
+				case Path ignored -> "; filename=\"" + name + "\"\r\n" + ContentType.OCTET.description();
+				case InputStream ignored -> "; filename=\"" + name + "\"\r\n" + ContentType.OCTET.description();
+				case byte[] ignored -> "; filename=\"" + name + "\"\r\n" + ContentType.OCTET.description();
+				case String ignored -> "";
+				default -> "\r\nContent-Type: " + defaultCodec().mediaType();
+			} + "\r\n\r\n";
+		}
+
+		/**
+		 * @return the form-multipart body in memory, cached until the next put when
+		 *         every part is a byte[] or String
+		 */
+		byte[] build() {
+			byte[] body = requestBody.get();
+			if (body == null) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				boolean immutable = true;
+				for (String name : data.keySet()) {
+					Part part = part(name);
+					immutable &= part.bytes() != null && !(part.body() instanceof Path);
+					out.writeBytes(part.header());
+					try {
+						out.writeBytes(content(name, part));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					out.writeBytes(CRLF);
+				}
+				out.writeBytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+				body = out.toByteArray();
+				if (immutable) {
+					requestBody.set(body);
+				}
+			}
+			return body;
+		}
+
+		/**
+		 * Streams the form-multipart as a {@link BodyPublisher} without building it
+		 * in memory. Part headers and boundaries are small Strings, {@link Path}
+		 * parts are read from their {@link java.nio.channels.FileChannel} and
+		 * {@link InputStream} parts from the stream, both through a fixed-size
+		 * buffer while the client sends. The Content-Length is exact when every
+		 * part has a known size, otherwise the body is sent chunked.
+		 *
+		 * @return the form-multipart body
+		 */
+		public BodyPublisher publisher() {
+			List<BodyPublisher> publishers = new ArrayList<>();
+			for (String name : data.keySet()) {
+				Part part = part(name);
+				publishers.add(BodyPublishers.ofByteArray(part.header()));
+				publishers.add(part.bytes() != null && !(part.body() instanceof Path) ? BodyPublishers.ofByteArray(part.bytes()) : partPublisher(part.body()));
+				publishers.add(BodyPublishers.ofByteArray(CRLF));
+			}
+			publishers.add(BodyPublishers.ofString("--" + boundary + "--\r\n"));
+			return BodyPublishers.concat(publishers.toArray(BodyPublisher[]::new));
+		}
+
+		BodyPublisher partPublisher(Object body) {
+			return switch (body) {
+				case Path path -> {
+					try {
+						yield BodyPublishers.ofFile(path);
+					} catch (IOException e) {
+						e.printStackTrace();
+						yield BodyPublishers.noBody();
+					}
+				}
+				case InputStream inputStream -> BodyPublishers.ofInputStream(() -> inputStream);
+				case byte[] bytes -> BodyPublishers.ofByteArray(bytes);
+				case String string -> BodyPublishers.ofString(string, StandardCharsets.UTF_8);
+				default -> ofCodec(defaultCodec(), body);
+			};
+		}
+
+		/**
+		 * Re-use instance with empty variable
+		 */
+		public void reset() {
+			data.clear();
+			parts.clear();
+			requestBody.set(null);
+		}
+
+		public void close() {
+			reset();
+		}
+	}
+
+	/**
+	 * Representation of a form-urlencoded request, use to send in
+	 * {@link HttpFlex#post(Object)}. Entries are written straight to bytes,
+	 * values of {@link #putEncoded(String, String)} percent-encoded, and each
+	 * entry is written once: {@link #build()} only writes the entries put since
+	 * the last build and joins the rest from their bytes.
+	 */
+	public record UrlEncoded(Map<String, Object> data, Map<String, byte[]> encoded, Encoder encoder,
+	                         AtomicReference<byte[]> requestBody) implements AutoCloseable {
+		/**
+		 * Value to percent-encode, see {@link #putEncoded(String, String)}.
+		 */
+		record Encoded(String value) {
+		}
+
+		/**
+		 * Constructs a new form-urlencoded instance.
+		 */
+		public static UrlEncoded instance() {
+			return new UrlEncoded(new LinkedHashMap<>(), new HashMap<>(), new Encoder(), new AtomicReference<>());
+		}
+
+		/**
+		 * Put chunk of data to current form-urlencoded.
+		 *
+		 * @param map Map.Entry Key is form-urlencoded name
+		 *            Map.Entry Value is form-urlencoded data (can be a {@link String},
+		 *            {@link Path}, {@link InputStream}, byte[], or any other class
+		 *            will be automatically convert to Json string by
+		 *            {@link HttpFlex#defaultGson})
+		 */
+		public <T> UrlEncoded putAll(Map<String, ?> map) {
+			map.forEach(this::put);
+			return this;
+		}
+
+		/**
+		 * Put data to current form-urlencoded. Name and value are sent as is, so
+		 * they must already be form-urlencoded, see
+		 * {@link #putEncoded(String, String)} for values that are not.
+		 *
+		 * @param name is form-urlencoded name
+		 * @param body is form-urlencoded data (can be a {@link String},
+		 *             {@link Path}, {@link InputStream}, byte[], or any other class
+		 *             will be automatically convert to Json string by
+		 *             {@link HttpFlex#defaultGson})
+		 */
+		public <T> UrlEncoded put(String name, T body) {
+			data.put(name, body);
+			encoded.remove(name);
+			requestBody.set(null);
+			return this;
+		}
+
+		/**
+		 * Remove data of current form-urlencoded.
+		 *
+		 * @param name is form-urlencoded name
+		 */
+		public UrlEncoded remove(String name) {
+			data.remove(name);
+			encoded.remove(name);
+			requestBody.set(null);
+			return this;
+		}
+
+		/**
+		 * @param name is form-urlencoded name
+		 * @param body is form-urlencoded data (can be a {@link String}, auto
+		 *             encode-url)
+		 */
+		public <T> UrlEncoded putEncoded(String name, String body) {
+			return put(name, new Encoded(body));
+		}
+
+		/**
+		 * @return the form-urlencoded body, encoding only the entries put since the
+		 *         last build
+		 */
+		public byte[] bytes() {
+			byte[] body = requestBody.get();
+			if (body == null) {
+				data.forEach((name, value) -> {
+					if (!encoded.containsKey(name)) {
+						encoded.put(name, encode(name, value));
+					}
+				});
+				encoder.reset();
+				data.keySet().forEach(name -> {
+					if (encoder.size() > 0) {
+						encoder.put('&');
+					}
+					encoder.writeBytes(encoded.get(name));
+				});
+				body = encoder.toByteArray();
+				requestBody.set(body);
+			}
+			return body;
+		}
+
+		byte[] encode(String name, Object body) {
+			encoder.reset();
+			encoder.verbatim = true;
+			encoder.append(name).end();
+			encoder.put('=');
+			try {
+				switch (body) {
+					case Encoded(String value) -> {
+						encoder.verbatim = false;
+						encoder.append(value);
+					}
+					case String string -> encoder.append(string);
+					case Path path -> {
+						try (InputStream inputStream = Files.newInputStream(path)) {
+							encoder.transfer(inputStream);
+						}
+					}
+					case InputStream inputStream -> encoder.transfer(inputStream);
+					case byte[] bytes -> encoder.encode(Base64.getEncoder().encode(bytes));
+					case Boolean b -> encoder.append(b.toString());
+					case Number n -> encoder.append(n.toString());
+					case null -> {
+					}
+					default -> {
+						if (defaultCodec() instanceof GsonCodec(Gson gson)) {
+							gson.toJson(body, encoder);
+						} else {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							defaultCodec().write(body, out);
+							encoder.encode(out.toByteArray());
+						}
+					}
+				}
+				encoder.end();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return encoder.toByteArray();
+		}
+
+		/**
+		 * @return the form-urlencoded body as a String
+		 */
+		public String build() {
+			return new String(bytes(), StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return the form-urlencoded body
+		 */
+		public BodyPublisher publisher() {
+			return BodyPublishers.ofByteArray(bytes());
+		}
+
+		/**
+		 * Re-use instance with empty variable
+		 */
+		public void reset() {
+			data.clear();
+			encoded.clear();
+			requestBody.set(null);
+		}
+
+		/**
+		 * Remove intsance
+		 */
+		public void close() {
+			reset();
+		}
+
+		/**
+		 * Percent-encodes chars as UTF-8 and bytes into its reusable buffer by
+		 * table lookup, as application/x-www-form-urlencoded: ALPHA, DIGIT and
+		 * "-._*" as is, space as '+', everything else as %XX. When verbatim, chars
+		 * are written as UTF-8 and bytes as they are.
+		 */
+		static final class Encoder extends Writer {
+			static final boolean[] SAFE = new boolean[128];
+			static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+			static {
+				for (char c : "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-._*".toCharArray()) {
+					SAFE[c] = true;
+				}
+			}
+
+			byte[] buffer = new byte[256];
+			int size;
+			char highSurrogate;
+			boolean verbatim;
+
+			void reset() {
+				size = 0;
+				highSurrogate = 0;
+			}
+
+			int size() {
+				return size;
+			}
+
+			byte[] toByteArray() {
+				return Arrays.copyOf(buffer, size);
+			}
+
+			void ensure(int extra) {
+				if (size + extra > buffer.length) {
+					buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+				}
+			}
+
+			void put(int b) {
+				ensure(1);
+				buffer[size++] = (byte) b;
+			}
+
+			void writeBytes(byte[] bytes) {
+				ensure(bytes.length);
+				System.arraycopy(bytes, 0, buffer, size, bytes.length);
+				size += bytes.length;
+			}
+
+			/**
+			 * Percent-encodes len raw bytes, e.g. UTF-8 text.
+			 */
+			void encode(byte[] bytes, int offset, int len) {
+				if (verbatim) {
+					ensure(len);
+					System.arraycopy(bytes, offset, buffer, size, len);
+					size += len;
+					return;
+				}
+				ensure(len * 3);
+				for (int i = offset; i < offset + len; i++) {
+					int b = bytes[i] & 0xFF;
+					if (b < 128 && SAFE[b]) {
+						buffer[size++] = (byte) b;
+					} else if (b == ' ') {
+						buffer[size++] = '+';
+					} else {
+						buffer[size++] = '%';
+						buffer[size++] = HEX[b >> 4];
+						buffer[size++] = HEX[b & 0xF];
+					}
+				}
+			}
+
+			void encode(byte[] bytes) {
+				encode(bytes, 0, bytes.length);
+			}
+
+			void transfer(InputStream inputStream) throws IOException {
+				byte[] chunk = new byte[8192];
+				int read;
+				while ((read = inputStream.read(chunk)) != -1) {
+					encode(chunk, 0, read);
+				}
+			}
+
+			/**
+			 * Ends the current text, a dangling high surrogate is encoded as '?'.
+			 */
+			void end() {
+				if (highSurrogate != 0) {
+					highSurrogate = 0;
+					utf8('?');
+				}
+			}
+
+			void utf8(int codePoint) {
+				ensure(12);
+				if (codePoint < 0x80) {
+					percent(codePoint);
+				} else if (codePoint < 0x800) {
+					percent(0xC0 | codePoint >> 6);
+					percent(0x80 | codePoint & 0x3F);
+				} else if (codePoint < 0x10000) {
+					percent(0xE0 | codePoint >> 12);
+					percent(0x80 | codePoint >> 6 & 0x3F);
+					percent(0x80 | codePoint & 0x3F);
+				} else {
+					percent(0xF0 | codePoint >> 18);
+					percent(0x80 | codePoint >> 12 & 0x3F);
+					percent(0x80 | codePoint >> 6 & 0x3F);
+					percent(0x80 | codePoint & 0x3F);
+				}
+			}
+
+			void percent(int b) {
+				if (verbatim) {
+					buffer[size++] = (byte) b;
+					return;
+				}
+				buffer[size++] = '%';
+				buffer[size++] = HEX[b >> 4];
+				buffer[size++] = HEX[b & 0xF];
+			}
+
+			void encode(char c) {
+				if (highSurrogate != 0 && Character.isLowSurrogate(c)) {
+					utf8(Character.toCodePoint(highSurrogate, c));
+					highSurrogate = 0;
+					return;
+				}
+				end();
+				if (c < 128) {
+					ensure(3);
+					if (SAFE[c] || verbatim) {
+						buffer[size++] = (byte) c;
+					} else if (c == ' ') {
+						buffer[size++] = '+';
+					} else {
+						percent(c);
+					}
+				} else if (Character.isHighSurrogate(c)) {
+					highSurrogate = c;
+				} else {
+					utf8(Character.isLowSurrogate(c) ? '?' : c);
+				}
+			}
+
+			@Override
+			public Encoder append(CharSequence chars) {
+				for (int i = 0; i < chars.length(); i++) {
+					encode(chars.charAt(i));
+				}
+				return this;
+			}
+
+			@Override
+			public void write(int c) {
+				encode((char) c);
+			}
+
+			@Override
+			public void write(char[] chars, int offset, int len) {
+				for (int i = offset; i < offset + len; i++) {
+					encode(chars[i]);
+				}
+			}
+
+			@Override
+			public void write(String string, int offset, int len) {
+				for (int i = offset; i < offset + len; i++) {
+					encode(string.charAt(i));
+				}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		}
+	}
+
+	/**
+	 * Concurrent download engine behind the getFiles* helpers. Downloads run
+	 * asynchronously on the shared client of {@link ClientPool}, at most
+	 * {@link #concurrency(int)} at a time overall and {@link #perHost(int)} at a
+	 * time per host, taking hosts in turn so one slow host does not hold back the
+	 * others. Every input gets a {@link Result} in input order.
+	 */
+	public static final class BulkDownload {
+		int concurrency = 16;
+		int perHost = 6;
+		boolean preallocate;
+		Consumer<Progress> progress = progress -> {
+		};
+		Consumer<HttpFlex> configurer = flex -> {
+		};
+
+		/**
+		 * Outcome of one download.
+		 */
+		public enum Status {
+			SUCCESS, FAILURE, SKIPPED
+		}
+
+		/**
+		 * @param url        the requested url
+		 * @param status     the outcome of the download
+		 * @param value      the downloaded body, or the existing {@link Path} when
+		 *                   skipped, null on failure
+		 * @param statusCode the HTTP status code, 0 when no response was received
+		 * @param error      the failure cause, null unless status is FAILURE
+		 */
+		public record Result<R>(String url, Status status, R value, int statusCode, Throwable error) {
+			public boolean isSuccess() {
+				return status == Status.SUCCESS;
+			}
+		}
+
+		/**
+		 * @param completed number of finished downloads
+		 * @param total     number of requested downloads
+		 * @param result    the download that just finished
+		 */
+		public record Progress(int completed, int total, Result<?> result) {
+		}
+
+		record Task<R>(int index, URI uri, BodyHandler<R> handler) {
+		}
+
+		public static BulkDownload instance() {
+			return new BulkDownload();
+		}
+
+		/**
+		 * @param max maximum downloads in flight overall (default 16)
+		 */
+		public BulkDownload concurrency(int max) {
+			concurrency = Math.max(1, max);
+			return this;
+		}
+
+		/**
+		 * @param max maximum downloads in flight per host (default 6)
+		 */
+		public BulkDownload perHost(int max) {
+			perHost = Math.max(1, max);
+			return this;
+		}
+
+		/**
+		 * @param preallocate true to size downloaded files to their Content-Length
+		 *                    before writing, see {@link HttpFlex#fileHandler(Path, boolean)}
+		 */
+		public BulkDownload preallocate(boolean preallocate) {
+			this.preallocate = preallocate;
+			return this;
+		}
+
+		/**
+		 * @param progress called after each download completes, possibly from
+		 *                 several client threads at once
+		 */
+		public BulkDownload onProgress(Consumer<Progress> progress) {
+			this.progress = progress;
+			return this;
+		}
+
+		/**
+		 * @param configurer applied to the {@link HttpFlex} of every download (e.g.,
+		 *                   to set headers or a proxy)
+		 */
+		public BulkDownload configure(Consumer<HttpFlex> configurer) {
+			this.configurer = configurer;
+			return this;
+		}
+
+		/**
+		 * @param urlList {@link List<String>}, "data:image" urls are decoded locally
+		 * @return {@link List<Result>} of byte array, in input order
+		 */
+		public List<Result<byte[]>> bytes(List<String> urlList) {
+			return run(urlList, url -> Base64.getDecoder().decode(url.split(",")[1]), url -> success(BodyHandlers.ofByteArray()));
+		}
+
+		/**
+		 * @param uriList {@link List<URI>}
+		 * @return {@link List<Result>} of byte array, in input order
+		 */
+		public List<Result<byte[]>> bytesFromURI(List<URI> uriList) {
+			return bytes(uriList.stream().map(URI::toString).toList());
+		}
+
+		/**
+		 * @param urlList {@link List<String>}, "data:image" urls are decoded locally
+		 * @return {@link List<Result>} of {@link InputStream}, in input order
+		 */
+		public List<Result<InputStream>> inputStreams(List<String> urlList) {
+			return run(urlList, url -> new ByteArrayInputStream(Base64.getDecoder().decode(url.split(",")[1])), url -> success(BodyHandlers.ofInputStream()));
+		}
+
+		/**
+		 * @param uriList {@link List<URI>}
+		 * @return {@link List<Result>} of {@link InputStream}, in input order
+		 */
+		public List<Result<InputStream>> inputStreamsFromURI(List<URI> uriList) {
+			return inputStreams(uriList.stream().map(URI::toString).toList());
+		}
+
+		/**
+		 * Downloads each url straight to its {@link Path} through a temporary file,
+		 * see {@link HttpFlex#fileHandler(Path, boolean)}. Existing files are
+		 * {@link Status#SKIPPED}.
+		 *
+		 * @param urlPathMap {@link Map<String, Path>}
+		 * @return {@link List<Result>} of {@link Path}, in map iteration order
+		 */
+		public List<Result<Path>> files(Map<String, Path> urlPathMap) {
+			List<String> urlList = new ArrayList<>(urlPathMap.keySet());
+			List<Path> pathList = new ArrayList<>(urlPathMap.values());
+			List<Result<Path>> results = new ArrayList<>(urlList.size());
+			List<String> pending = new ArrayList<>();
+			List<Integer> pendingIndex = new ArrayList<>();
+			for (int i = 0; i < urlList.size(); i++) {
+				if (Files.isRegularFile(pathList.get(i))) {
+					results.add(new Result<>(urlList.get(i), Status.SKIPPED, pathList.get(i), 0, null));
+				} else {
+					results.add(null);
+					pending.add(urlList.get(i));
+					pendingIndex.add(i);
+				}
+			}
+			List<Result<Path>> downloaded = run(pending, url -> {
+				try {
+					return Files.write(urlPathMap.get(url), Base64.getDecoder().decode(url.split(",")[1]), StandardOpenOption.CREATE_NEW);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, url -> fileHandler(urlPathMap.get(url), preallocate));
+			for (int i = 0; i < downloaded.size(); i++) {
+				results.set(pendingIndex.get(i), downloaded.get(i));
+			}
+			return results;
+		}
+
+		/**
+		 * @param uriPathMap {@link Map<URI, Path>}
+		 * @return {@link List<Result>} of {@link Path}, in map iteration order
+		 */
+		public List<Result<Path>> filesFromURI(Map<URI, Path> uriPathMap) {
+			Map<String, Path> urlPathMap = new LinkedHashMap<>();
+			uriPathMap.forEach((uri, path) -> urlPathMap.put(uri.toString(), path));
+			return files(urlPathMap);
+		}
+
+		/**
+		 * Wraps handler so that the body of a non 2xx response is discarded.
+		 */
+		static <R> BodyHandler<R> success(BodyHandler<R> handler) {
+			return responseInfo -> responseInfo.statusCode() / 100 == 2 ? handler.apply(responseInfo) : BodySubscribers.replacing(null);
+		}
+
+		<R> List<Result<R>> run(List<String> urlList, Function<String, R> dataUrl, Function<String, BodyHandler<R>> handler) {
+			List<Result<R>> results = new ArrayList<>(Collections.nCopies(urlList.size(), null));
+			List<Task<R>> tasks = new ArrayList<>();
+			for (int i = 0; i < urlList.size(); i++) {
+				String url = urlList.get(i);
+				try {
+					if (url.startsWith("data:image")) {
+						results.set(i, new Result<>(url, Status.SUCCESS, dataUrl.apply(url), 0, null));
+					} else {
+						tasks.add(new Task<>(i, URI.create(url), handler.apply(url)));
+					}
+				} catch (RuntimeException e) {
+					results.set(i, new Result<>(url, Status.FAILURE, null, 0, e));
+				}
+			}
+			new Engine<>(tasks, results).start().join();
+			return results;
+		}
+
+		/**
+		 * Schedules the network downloads of one run. The lock only guards the
+		 * queues and counters, requests are sent outside of it.
+		 */
+		final class Engine<R> {
+			final List<Result<R>> results;
+			final Map<String, ArrayDeque<Task<R>>> queues = new HashMap<>();
+			final ArrayDeque<String> hosts = new ArrayDeque<>();
+			final Map<String, Integer> active = new HashMap<>();
+			final ReentrantLock lock = new ReentrantLock();
+			final CompletableFuture<Void> done = new CompletableFuture<>();
+			final AtomicInteger completed;
+			final AtomicInteger pumps = new AtomicInteger();
+			final int total;
+			int running;
+			int remaining;
+
+			Engine(List<Task<R>> tasks, List<Result<R>> results) {
+				this.results = results;
+				this.total = results.size();
+				this.completed = new AtomicInteger(total - tasks.size());
+				this.remaining = tasks.size();
+				for (Task<R> task : tasks) {
+					String host = Objects.toString(task.uri().getAuthority(), "");
+					queues.computeIfAbsent(host, key -> {
+						hosts.add(key);
+						return new ArrayDeque<>();
+					}).add(task);
+				}
+			}
+
+			CompletableFuture<Void> start() {
+				if (remaining == 0) {
+					done.complete(null);
+				} else {
+					pump();
+				}
+				return done;
+			}
+
+			/**
+			 * Starts the queued tasks that fit the limits. A send that completes
+			 * synchronously calls back into pump through finish; such calls, and calls
+			 * from other threads meanwhile, only make the running pump loop again, so
+			 * the stack does not grow with the number of tasks.
+			 */
+			void pump() {
+				if (pumps.getAndIncrement() != 0) {
+					return;
+				}
+				int missed = 1;
+				do {
+					starting().forEach(this::send);
+					missed = pumps.addAndGet(-missed);
+				} while (missed != 0);
+			}
+
+			List<Task<R>> starting() {
+				List<Task<R>> starting = new ArrayList<>();
+				lock.lock();
+				try {
+					int idle = 0;
+					while (running < concurrency && !hosts.isEmpty() && idle < hosts.size()) {
+						String host = hosts.poll();
+						ArrayDeque<Task<R>> queue = queues.get(host);
+						if (active.getOrDefault(host, 0) < perHost) {
+							starting.add(queue.poll());
+							active.merge(host, 1, Integer::sum);
+							running++;
+							idle = 0;
+						} else {
+							idle++;
+						}
+						if (queue.isEmpty()) {
+							queues.remove(host);
+						} else {
+							hosts.add(host);
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+				return starting;
+			}
+
+			void send(Task<R> task) {
+				try {
+					HttpFlex flex = new HttpFlex(task.uri());
+					configurer.accept(flex);
+					flex.exchange(flex.requestBuilder.GET().build(), task.handler()).whenComplete((response, error) -> finish(task, response, error));
+				} catch (RuntimeException e) {
+					finish(task, null, e);
+				}
+			}
+
+			void finish(Task<R> task, HttpResponse<R> response, Throwable error) {
+				String url = task.uri().toString();
+				Result<R> result;
+				if (error != null) {
+					result = new Result<>(url, Status.FAILURE, null, 0, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+				} else if (response.statusCode() / 100 != 2) {
+					result = new Result<>(url, Status.FAILURE, null, response.statusCode(), null);
+				} else {
+					result = new Result<>(url, Status.SUCCESS, response.body(), response.statusCode(), null);
+				}
+				results.set(task.index(), result);
+				boolean last;
+				lock.lock();
+				try {
+					running--;
+					active.merge(Objects.toString(task.uri().getAuthority(), ""), -1, Integer::sum);
+					last = --remaining == 0;
+				} finally {
+					lock.unlock();
+				}
+				try {
+					progress.accept(new Progress(completed.incrementAndGet(), total, result));
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				if (last) {
+					done.complete(null);
+				} else {
+					pump();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Segmented download of one large file. The file is probed with HEAD: when
+	 * the server sends "Accept-Ranges: bytes" and a Content-Length, the file is
+	 * split into byte ranges fetched concurrently and written at their offset of
+	 * a preallocated "*.part" file. Progress is kept in a "*.part.json" sidecar so
+	 * that a failed or interrupted download resumes only the missing bytes on the
+	 * next {@link #download(URI, Path)}. Without range support it falls back to
+	 * {@link HttpFlex#getFile(URI, Path, boolean)}.
+	 */
+	public static final class RangeDownload {
+		static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+		static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+		static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		int segments = 4;
+		long segmentSize;
+		Consumer<HttpFlex> configurer = flex -> {
+		};
+
+		/**
+		 * Content of the progress sidecar.
+		 */
+		static final class Sidecar {
+			String uri;
+			long length;
+			String validator;
+			long segmentSize;
+			long[] written;
+		}
+
+		public static RangeDownload instance() {
+			return new RangeDownload();
+		}
+
+		/**
+		 * @param count number of ranges fetched at the same time (default 4)
+		 */
+		public RangeDownload segments(int count) {
+			segments = Math.max(1, count);
+			return this;
+		}
+
+		/**
+		 * @param bytes size of each range, 0 (default) to split the file evenly
+		 *              between {@link #segments(int)} ranges of at least 1MB
+		 */
+		public RangeDownload segmentSize(long bytes) {
+			segmentSize = Math.max(0, bytes);
+			return this;
+		}
+
+		/**
+		 * @param configurer applied to the {@link HttpFlex} of every request (e.g.,
+		 *                   to set headers or a proxy)
+		 */
+		public RangeDownload configure(Consumer<HttpFlex> configurer) {
+			this.configurer = configurer;
+			return this;
+		}
+
+		HttpFlex flex(URI uri) {
+			HttpFlex flex = new HttpFlex(uri);
+			configurer.accept(flex);
+			return flex;
+		}
+
+		/**
+		 * @param uri  {@link URI}
+		 * @param path {@link Path} to save to, kept as is if it already exists
+		 * @return {@link Path}, or null when the download fails (it can be resumed
+		 *         by calling again)
+		 */
+		public Path download(URI uri, Path path) {
+			if (Files.isRegularFile(path)) {
+				return path;
+			}
+			Path part = path.resolveSibling(path.getFileName() + ".part");
+			Path sidecarPath = path.resolveSibling(path.getFileName() + ".part.json");
+			try {
+				HttpFlex probe = flex(uri);
+				HttpResponse<Void> head = await(probe.exchange(probe.requestBuilder.method("HEAD", BodyPublishers.noBody()).build(), BodyHandlers.discarding()));
+				long length = head.headers().firstValueAsLong("Content-Length").orElse(-1);
+				if (head.statusCode() / 100 != 2 || length <= 0 || !head.headers().firstValue("Accept-Ranges").orElse("").equalsIgnoreCase("bytes")) {
+					return getFile(uri, path, true);
+				}
+				String validator = head.headers().firstValue("ETag").or(() -> head.headers().firstValue("Last-Modified")).orElse(null);
+				long size = segmentSize > 0 ? segmentSize : Math.max(MIN_SEGMENT_SIZE, (length + segments - 1) / segments);
+				Sidecar sidecar = readSidecar(sidecarPath);
+				if (sidecar == null || !Files.isRegularFile(part) || !uri.toString().equals(sidecar.uri) || sidecar.length != length || sidecar.segmentSize != size || !Objects.equals(validator, sidecar.validator)) {
+					sidecar = new Sidecar();
+					sidecar.uri = uri.toString();
+					sidecar.length = length;
+					sidecar.validator = validator;
+					sidecar.segmentSize = size;
+					sidecar.written = new long[(int) ((length + size - 1) / size)];
+					try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+						file.setLength(length);
+					}
+					writeSidecar(sidecarPath, sidecar);
+				}
+				if (fetch(uri, part, sidecarPath, sidecar)) {
+					Files.deleteIfExists(sidecarPath);
+					publish(part, path);
+					return path;
+				}
+				return null;
+			} catch (IOException | UncheckedIOException | InterruptedException | IllegalArgumentException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		/**
+		 * Fetches the missing bytes of every range, {@link #segments} at a time.
+		 *
+		 * @return true when every byte of every range is written
+		 */
+		boolean fetch(URI uri, Path part, Path sidecarPath, Sidecar sidecar) throws IOException, InterruptedException {
+			try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+				Job job = new Job(uri, channel, sidecarPath, sidecar);
+				List<CompletableFuture<Void>> workers = new ArrayList<>();
+				for (int i = 0; i < Math.min(segments, sidecar.written.length); i++) {
+					workers.add(job.worker());
+				}
+				try {
+					CompletableFuture.allOf(workers.toArray(CompletableFuture[]::new)).get();
+					return job.complete();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					return false;
+				} finally {
+					job.inflight.forEach(exchange -> exchange.cancel(true));
+					job.dirty.set(true);
+					job.checkpoint();
+				}
+			}
+		}
+
+		/**
+		 * State of one {@link #fetch} run: the ranges left to start, the bytes
+		 * written per range and the exchanges in flight. Progress is checkpointed
+		 * to the sidecar every {@link #CHECKPOINT_BYTES} or
+		 * {@link #CHECKPOINT_NANOS}, whichever comes first, and when a range ends.
+		 */
+		final class Job {
+			final URI uri;
+			final FileChannel channel;
+			final Path sidecarPath;
+			final Sidecar sidecar;
+			final AtomicLongArray written;
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicBoolean dirty = new AtomicBoolean();
+			final AtomicLong unsaved = new AtomicLong();
+			volatile long savedAt = System.nanoTime();
+			final ReentrantLock sidecarLock = new ReentrantLock();
+			final Set<CompletableFuture<?>> inflight = ConcurrentHashMap.newKeySet();
+
+			Job(URI uri, FileChannel channel, Path sidecarPath, Sidecar sidecar) {
+				this.uri = uri;
+				this.channel = channel;
+				this.sidecarPath = sidecarPath;
+				this.sidecar = sidecar;
+				this.written = new AtomicLongArray(sidecar.written);
+			}
+
+			/**
+			 * Fetches ranges one after another until none is left, skipping those
+			 * already complete.
+			 */
+			CompletableFuture<Void> worker() {
+				int index;
+				while ((index = next.getAndIncrement()) < written.length()) {
+					if (written.get(index) < segmentLength(index)) {
+						return segment(index).thenCompose(done -> worker());
+					}
+				}
+				return CompletableFuture.completedFuture(null);
+			}
+
+			long segmentLength(int index) {
+				long start = index * sidecar.segmentSize;
+				return Math.min(sidecar.length, start + sidecar.segmentSize) - start;
+			}
+
+			/**
+			 * @return true when every range is written to its end
+			 */
+			boolean complete() {
+				for (int i = 0; i < written.length(); i++) {
+					if (written.get(i) < segmentLength(i)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			/**
+			 * Fetches the missing bytes of one range. A 206 may carry fewer bytes
+			 * than requested, the rest is then requested again.
+			 */
+			CompletableFuture<Void> segment(int index) {
+				long start = index * sidecar.segmentSize;
+				long from = start + written.get(index);
+				long to = start + segmentLength(index) - 1;
+				HttpFlex flex = flex(uri);
+				flex.requestBuilder.setHeader("Range", "bytes=" + from + "-" + to);
+				if (sidecar.validator != null) {
+					flex.requestBuilder.setHeader("If-Range", sidecar.validator);
+				}
+				CompletableFuture<HttpResponse<Void>> exchange = flex.exchange(flex.requestBuilder.GET().build(), new OneShotHandler<>(responseInfo -> {
+					if (responseInfo.statusCode() != 206) {
+						throw new UncheckedIOException(new IOException("Range request of " + uri + " answered " + responseInfo.statusCode()));
+					}
+					String contentRange = responseInfo.headers().firstValue("Content-Range").orElse("");
+					long end = rangeEnd(contentRange, from, to, sidecar.length);
+					if (end < 0) {
+						throw new UncheckedIOException(new IOException("Range request of " + uri + " for bytes " + from + "-" + to + " answered Content-Range \"" + contentRange + "\""));
+					}
+					return new RangeSubscriber(channel, from, end, count -> {
+						written.addAndGet(index, count);
+						dirty.set(true);
+						if (unsaved.addAndGet(count) >= CHECKPOINT_BYTES || System.nanoTime() - savedAt >= CHECKPOINT_NANOS) {
+							checkpoint();
+						}
+					});
+				}));
+				inflight.add(exchange);
+				return exchange.thenCompose(response -> {
+					inflight.remove(exchange);
+					checkpoint();
+					long reached = start + written.get(index);
+					if (reached > to) {
+						return CompletableFuture.completedFuture(null);
+					}
+					if (reached == from) {
+						return CompletableFuture.failedFuture(new IOException("Range request of " + uri + " for bytes " + from + "-" + to + " answered no bytes"));
+					}
+					return segment(index);
+				});
+			}
+
+			/**
+			 * Forces written bytes to disk, then records them in the sidecar.
+			 */
+			void checkpoint() {
+				sidecarLock.lock();
+				try {
+					unsaved.set(0);
+					savedAt = System.nanoTime();
+					if (dirty.getAndSet(false)) {
+						long[] snapshot = new long[written.length()];
+						for (int i = 0; i < snapshot.length; i++) {
+							snapshot[i] = written.get(i);
+						}
+						channel.force(false);
+						sidecar.written = snapshot;
+						writeSidecar(sidecarPath, sidecar);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					sidecarLock.unlock();
+				}
+			}
+		}
+
+		/**
+		 * Parses the Content-Range of a 206 answering bytes from-to of a file of
+		 * length bytes.
+		 *
+		 * @return the last byte the response carries, -1 when the range does not
+		 *         start at from, ends after to or is of another file length
+		 */
+		static long rangeEnd(String contentRange, long from, long to, long length) {
+			String value = contentRange.trim();
+			if (!value.regionMatches(true, 0, "bytes ", 0, 6)) {
+				return -1;
+			}
+			int dash = value.indexOf('-');
+			int slash = value.indexOf('/');
+			if (dash < 0 || slash < dash) {
+				return -1;
+			}
+			try {
+				long start = Long.parseLong(value.substring(6, dash).trim());
+				long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+				String total = value.substring(slash + 1).trim();
+				if (start != from || end < start || end > to || !(total.equals("*") || Long.parseLong(total) == length)) {
+					return -1;
+				}
+				return end;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Writes each received buffer at its position of the channel, up to the
+		 * last byte of the range. A write failure or a body longer than the range
+		 * cancels the subscription and fails the body.
+		 */
+		static final class RangeSubscriber implements BodySubscriber<Void> {
+			final FileChannel channel;
+			final long end;
+			final LongConsumer onWritten;
+			final CompletableFuture<Void> body = new CompletableFuture<>();
+			long position;
+			Flow.Subscription subscription;
+
+			RangeSubscriber(FileChannel channel, long position, long end, LongConsumer onWritten) {
+				this.channel = channel;
+				this.position = position;
+				this.end = end;
+				this.onWritten = onWritten;
+			}
+
+			@Override
+			public CompletionStage<Void> getBody() {
+				return body;
+			}
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(List<ByteBuffer> item) {
+				if (body.isDone()) {
+					return;
+				}
+				try {
+					for (ByteBuffer buffer : item) {
+						int count = buffer.remaining();
+						if (position + count > end + 1) {
+							throw new IOException("Range response longer than its Content-Range, ending at byte " + end);
+						}
+						while (buffer.hasRemaining()) {
+							position += channel.write(buffer, position);
+						}
+						onWritten.accept(count);
+					}
+					subscription.request(1);
+				} catch (IOException | UncheckedIOException e) {
+					subscription.cancel();
+					body.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				body.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				body.complete(null);
+			}
+		}
+
+		static Sidecar readSidecar(Path sidecarPath) {
+			if (!Files.isRegularFile(sidecarPath)) {
+				return null;
+			}
+			try (Reader reader = Files.newBufferedReader(sidecarPath)) {
+				return defaultGson.get().fromJson(reader, Sidecar.class);
+			} catch (IOException | JsonParseException e) {
+				return null;
+			}
+		}
+
+		static void writeSidecar(Path sidecarPath, Sidecar sidecar) throws IOException {
+			Path temp = sidecarPath.resolveSibling(sidecarPath.getFileName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp)) {
+				defaultGson.get().toJson(sidecar, writer);
+			}
+			try {
+				Files.move(temp, sidecarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, sidecarPath, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * HTTP cache for GET responses, enabled with {@link HttpFlex#cache(HttpCache)}.
+	 * It honours Cache-Control (no-store, no-cache, max-age, immutable), Expires
+	 * and Age. A fresh entry is served without any request. A stale entry with an
+	 * ETag or Last-Modified validator is revalidated with If-None-Match or
+	 * If-Modified-Since, and a 304 is served from the cache. Entries are kept in
+	 * a memory LRU bounded in bytes, and entries evicted from memory can spill to
+	 * a disk directory bounded in bytes too. For "immutable" responses the
+	 * decoded object is kept per result type, so a fresh hit skips both the
+	 * network and Gson: such objects are shared and must be treated as read-only.
+	 * Requests with Authorization or Cookie headers and InputStream results
+	 * bypass the cache, responses marked private or with "Vary: *" are not
+	 * stored, and an entry is only served to requests with the same values for
+	 * the headers listed in its Vary. Bodies larger than a quarter of the memory
+	 * bound are streamed to the caller instead of being buffered.
+	 */
+	public static final class HttpCache {
+		long maxMemoryBytes = 32L * 1024 * 1024;
+		long maxDiskBytes = 256L * 1024 * 1024;
+		Path directory;
+
+		final ReentrantLock lock = new ReentrantLock();
+		final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+		final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+		long memoryBytes;
+		long diskBytes;
+		final LongAdder hits = new LongAdder();
+		final LongAdder revalidations = new LongAdder();
+		final LongAdder misses = new LongAdder();
+
+		/**
+		 * One cached response. The body is stored decoded from its
+		 * Content-Encoding, vary holds the request values of the headers listed
+		 * in its Vary.
+		 */
+		record Entry(String key, URI uri, HttpClient.Version version, int statusCode, HttpHeaders headers, byte[] body,
+		             long expiresAt, boolean immutable, String vary, Map<Type, Object> decoded) {
+			boolean isFresh(long now) {
+				return now < expiresAt;
+			}
+
+			boolean hasValidator() {
+				return headers.firstValue("ETag").isPresent() || headers.firstValue("Last-Modified").isPresent();
+			}
+
+			long size() {
+				return body.length + 512L;
+			}
+		}
+
+		/**
+		 * Metadata of an entry spilled to disk, next to its body file.
+		 */
+		static final class DiskEntry {
+			String key;
+			String uri;
+			String version;
+			int statusCode;
+			Map<String, List<String>> headers;
+			long expiresAt;
+			boolean immutable;
+			String vary;
+		}
+
+		/**
+		 * A response body received in full to be cached, as opposed to one
+		 * handed to the caller unbuffered.
+		 */
+		record Buffered(byte[] bytes) {
+		}
+
+		/**
+		 * Buffers a body to be cached until it outgrows limit, which a body of
+		 * unknown length can. The bytes received so far and the rest of the body
+		 * are then handed to the subscriber of the caller instead, whose body
+		 * becomes the body of this subscriber.
+		 */
+		static final class Spilling implements BodySubscriber<Object> {
+			final long limit;
+			final Supplier<BodySubscriber<Object>> direct;
+			final CompletableFuture<Object> body = new CompletableFuture<>();
+			final ReentrantLock lock = new ReentrantLock();
+			List<ByteBuffer> received = new ArrayList<>();
+			long size;
+			Flow.Subscription upstream;
+			BodySubscriber<Object> downstream;
+			// while the received bytes are not replayed, the end of the body is held back
+			boolean replaying;
+			boolean completed;
+			Throwable failure;
+
+			Spilling(long limit, Supplier<BodySubscriber<Object>> direct) {
+				this.limit = limit;
+				this.direct = direct;
+			}
+
+			@Override
+			public CompletionStage<Object> getBody() {
+				return body;
+			}
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				upstream = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(List<ByteBuffer> item) {
+				if (downstream != null) {
+					downstream.onNext(item);
+					return;
+				}
+				for (ByteBuffer buffer : item) {
+					size += buffer.remaining();
+				}
+				received.addAll(item);
+				if (size <= limit) {
+					upstream.request(1);
+				} else {
+					spill();
+				}
+			}
+
+			void spill() {
+				replaying = true;
+				downstream = direct.get();
+				downstream.getBody().whenComplete((value, error) -> {
+					if (error == null) {
+						body.complete(value);
+					} else {
+						body.completeExceptionally(error);
+					}
+				});
+				downstream.onSubscribe(new Flow.Subscription() {
+					@Override
+					public void request(long n) {
+						List<ByteBuffer> head = null;
+						lock.lock();
+						try {
+							if (replaying && n > 0 && received != null) {
+								head = received;
+								received = null;
+								n--;
+							}
+						} finally {
+							lock.unlock();
+						}
+						if (head != null) {
+							downstream.onNext(head);
+							boolean ended;
+							Throwable error;
+							lock.lock();
+							try {
+								replaying = false;
+								ended = completed;
+								error = failure;
+							} finally {
+								lock.unlock();
+							}
+							if (error != null) {
+								downstream.onError(error);
+								return;
+							} else if (ended) {
+								downstream.onComplete();
+								return;
+							}
+						}
+						if (n != 0) {
+							upstream.request(n);
+						}
+					}
+
+					@Override
+					public void cancel() {
+						upstream.cancel();
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				if (downstream == null) {
+					body.completeExceptionally(throwable);
+					return;
+				}
+				lock.lock();
+				try {
+					if (replaying) {
+						failure = throwable;
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				downstream.onError(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				if (downstream == null) {
+					byte[] bytes = new byte[(int) size];
+					int offset = 0;
+					for (ByteBuffer buffer : received) {
+						int count = buffer.remaining();
+						buffer.get(bytes, offset, count);
+						offset += count;
+					}
+					body.complete(new Buffered(bytes));
+					return;
+				}
+				lock.lock();
+				try {
+					if (replaying) {
+						completed = true;
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				downstream.onComplete();
+			}
+		}
+
+		/**
+		 * A response served from the cache, or received in full to be cached.
+		 */
+		record CachedResponse(HttpRequest request, int statusCode, HttpHeaders headers, Supplier<Object> body, URI uri,
+		                      HttpClient.Version version) implements HttpResponse<Supplier<Object>> {
+			@Override
+			public Optional<HttpResponse<Supplier<Object>>> previousResponse() {
+				return Optional.empty();
+			}
+
+			@Override
+			public Optional<SSLSession> sslSession() {
+				return Optional.empty();
+			}
+		}
 
-	/**
-	 * Sets the Content-Type header for HTTP requests.
-	 *
-	 * @param type The {@code ContentType} enum value representing the xpathContent type.
-	 * @return This {@code HttpFlex} instance for method chaining.
-	 */
-	public HttpFlex header(ContentType type) {
-		requestBuilder.headers(type.headerValues());
-		return this;
-	}
+		public static HttpCache instance() {
+			return new HttpCache();
+		}
 
-	/**
-	 * Representation of a multipart-formdata request, use to send in
-	 * {@link HttpFlex#post(Object)}.
-	 */
-	public record Multipart(ByteArrayOutputStream requestBody, String boundary, Map<String, Object> data,
-	                        AtomicBoolean needRebuild) implements AutoCloseable {
 		/**
-		 * Constructs a new Multipart instance with a randomly generated boundary.
+		 * @param bytes size bound of the memory tier (default 32MB)
 		 */
-		public static Multipart instance() {
-			return instance("-FormBoundary" + Long.toHexString(System.currentTimeMillis()));
+		public HttpCache maxMemoryBytes(long bytes) {
+			maxMemoryBytes = bytes;
+			return this;
 		}
 
 		/**
-		 * Constructs a new Multipart instance with a randomly generated boundary. And
-		 * put chunk of data to instance form-multipart.
-		 *
-		 * @param map Map.Entry Key is multipart-formdata name
-		 *            Map.Entry Value is multipart-formdata data (can be a {@link String},
-		 *            {@link InputStream}, byte[], or any other class will be
-		 *            automatically convert to Json string by
-		 *            {@link HttpFlex#defaultGson})
+		 * @param directory directory where entries evicted from memory are kept,
+		 *                  null (default) to drop them
 		 */
-		public static Multipart instance(Map<String, ?> map) {
-			return instance("-FormBoundary" + Long.toHexString(System.currentTimeMillis())).putAll(map);
+		public HttpCache disk(Path directory) {
+			this.directory = directory;
+			return this;
 		}
 
 		/**
-		 * Constructs a new multipart-formdata instance with a custom boundary.
-		 *
-		 * @param boundary is multipart-formdata boundary
+		 * @param bytes size bound of the disk tier (default 256MB)
 		 */
-		public static Multipart instance(String boundary) {
-			return new Multipart(new ByteArrayOutputStream(), boundary, new LinkedHashMap<>(), new AtomicBoolean(true));
+		public HttpCache maxDiskBytes(long bytes) {
+			maxDiskBytes = bytes;
+			return this;
 		}
 
 		/**
-		 * Constructs a new multipart-formdata instance with a custom boundary. And put
-		 * chunk of data to instance form-multipart.
-		 *
-		 * @param boundary is multipart-formdata boundary
-		 * @param map      Map.Entry Key is multipart-formdata name
-		 *                 Map.Entry Value is multipart-formdata data (can be a {@link String},
-		 *                 {@link InputStream}, byte[], or any other class will be
-		 *                 automatically convert to Json string by
-		 *                 {@link HttpFlex#defaultGson})
+		 * @return number of responses served from a fresh entry
 		 */
-		public static Multipart instance(String boundary, Map<String, ?> map) {
-			return instance(boundary).putAll(map);
+		public long hits() {
+			return hits.sum();
 		}
 
 		/**
-		 * Put chunk of data to current form-multipart.
-		 *
-		 * @param map Map.Entry Key is multipart-formdata name
-		 *            Map.Entry Value is multipart-formdata data (can be a {@link String},
-		 *            {@link InputStream}, byte[], or any other class will be
-		 *            automatically convert to Json string by
-		 *            {@link HttpFlex#defaultGson})
+		 * @return number of entries confirmed by a 304 response
 		 */
-		public <T> Multipart putAll(Map<String, ?> map) {
-			data.putAll(map);
-			needRebuild.set(true);
-			return this;
+		public long revalidations() {
+			return revalidations.sum();
 		}
 
 		/**
-		 * Put data to current form-multipart.
-		 *
-		 * @param name is multipart-formdata name
-		 * @param body is multipart-formdata data (can be a {@link String},
-		 *             {@link InputStream}, byte[], or any other class will be
-		 *             automatically convert to Json string by
-		 *             {@link HttpFlex#defaultGson})
+		 * @return number of requests answered with a full response
 		 */
-		public <T> Multipart put(String name, T body) {
-			data.put(name, body);
-			needRebuild.set(true);
-			return this;
+		public long misses() {
+			return misses.sum();
 		}
 
-		void writeRequest(String value) {
+		/**
+		 * Removes every entry from memory and disk.
+		 */
+		public void clear() {
+			List<String> spilled;
+			lock.lock();
 			try {
-				Channels.newChannel(requestBody).write(StandardCharsets.UTF_8.encode(value));
-			} catch (IOException e) {
-				e.printStackTrace();
+				memory.clear();
+				memoryBytes = 0;
+				spilled = new ArrayList<>(disk.keySet());
+				disk.clear();
+				diskBytes = 0;
+			} finally {
+				lock.unlock();
 			}
+			spilled.forEach(this::deleteFiles);
 		}
 
-		void writeChunkRequest(byte[] bytes) {
-			if (bytes != null) {
-				int size = bytes.length;
-				int offset = 0;
-				int DefaultBufferSize = 128 * 1024;
-				while (size > 0) {
-					final int buffer = Math.min(size, DefaultBufferSize);
-					requestBody.write(bytes, offset, buffer);
-					size -= buffer;
-					offset += buffer;
-				}
-			}
+		static String key(HttpRequest request) {
+			return request.uri() + " " + request.headers().firstValue("Accept").orElse("");
 		}
 
-		byte[] build() {
-			if (needRebuild.compareAndSet(true, false)) {
-				data.forEach((name, body) -> {
-					writeRequest("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"");
-					writeRequest(switch (body) {
-						case Path ignored -> "; filename=\"" + name + "\"\r\n" + ContentType.OCTET.description();
-						case InputStream ignored -> "; filename=\"" + name + "\"\r\n" + ContentType.OCTET.description();
-						case byte[] ignored -> "; filename=\"" + name + "\"\r\n" + ContentType.OCTET.description();
-						case String ignored -> "";
-						default -> "\r\n" + ContentType.JSON.description();
-					});
-					writeRequest("\r\n\r\n");
-
-					try {
-						writeChunkRequest(switch (body) {
-							case Path path -> Files.readAllBytes(path);
-							case InputStream inputStream -> inputStream.readAllBytes();
-							case byte[] bytes -> bytes;
-							case String string -> string.getBytes();
-							default -> defaultGson.get().toJson(body).getBytes();
-						});
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					writeRequest("\r\n");
-				});
-				writeRequest("--" + boundary + "--\r\n");
+		/**
+		 * @return the values request has for the headers listed in the Vary of
+		 *         headers, null for "Vary: *"
+		 */
+		static String vary(HttpHeaders headers, HttpRequest request) {
+			StringBuilder vary = new StringBuilder();
+			for (String name : headers.allValues("Vary").stream().flatMap(value -> Arrays.stream(value.split(","))).map(String::trim).filter(name -> !name.isEmpty()).map(String::toLowerCase).sorted().toList()) {
+				if (name.equals("*")) {
+					return null;
+				}
+				vary.append(name).append(':').append(String.join(",", request.headers().allValues(name))).append('\n');
 			}
-			return requestBody.toByteArray();
+			return vary.toString();
 		}
 
 		/**
-		 * Re-use instance with empty variable
+		 * @return the Cache-Control directives of headers, lower-cased, with
+		 *         their unquoted argument or "" when they have none
 		 */
-		public void reset() {
-			requestBody.reset();
-			data.clear();
+		static Map<String, String> cacheControl(HttpHeaders headers) {
+			Map<String, String> control = new HashMap<>();
+			headers.allValues("Cache-Control").forEach(value -> Arrays.stream(value.split(",")).map(String::trim).filter(directive -> !directive.isEmpty()).forEach(directive -> {
+				int equals = directive.indexOf('=');
+				control.put((equals < 0 ? directive : directive.substring(0, equals)).toLowerCase(), equals < 0 ? "" : directive.substring(equals + 1).replace("\"", "").trim());
+			}));
+			return control;
 		}
 
-		public void close() {
-			data.clear();
-			try {
-				requestBody.close();
-			} catch (Exception e) {
-				e.printStackTrace();
+		/**
+		 * @return true when a response with these headers may be buffered to be
+		 *         stored, or is a 304 answering a revalidation. A body without
+		 *         Content-Length is only buffered while it stays small enough,
+		 *         see {@link Spilling}
+		 */
+		boolean storable(HttpResponse.ResponseInfo responseInfo) {
+			if (responseInfo.statusCode() == 304) {
+				return true;
 			}
+			Map<String, String> control = cacheControl(responseInfo.headers());
+			return (responseInfo.statusCode() == 200 || responseInfo.statusCode() == 203) && !control.containsKey("no-store") && !control.containsKey("private") && responseInfo.headers().firstValueAsLong("Content-Length").orElse(0) <= maxMemoryBytes / 4;
 		}
-	}
 
-	/**
-	 * Representation of a form-urlencoded request, use to send in
-	 * {@link HttpFlex#post(Object)}.
-	 */
-	public record UrlEncoded(StringBuilder requestBody, Map<String, Object> data,
-	                         AtomicBoolean needRebuild) implements AutoCloseable {
 		/**
-		 * Constructs a new form-urlencoded instance.
+		 * Serves request from the cache when possible, otherwise sends it (with
+		 * validators when a stale entry exists) and caches the response.
 		 */
-		public static UrlEncoded instance() {
-			return new UrlEncoded(new StringBuilder(), new LinkedHashMap<>(), new AtomicBoolean(true));
+		CompletableFuture<HttpResponse<?>> send(HttpFlex flex, HttpRequest request, Type type) {
+			String key = key(request);
+			Entry cached = get(key);
+			Entry entry = cached == null || !Objects.equals(cached.vary(), vary(cached.headers(), request)) ? null : cached;
+			if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+				hits.increment();
+				return CompletableFuture.completedFuture(response(flex, request, entry, type));
+			}
+			HttpRequest sent = request;
+			if (entry != null && entry.hasValidator()) {
+				HttpRequest.Builder conditional = HttpRequest.newBuilder(request, (name, value) -> true);
+				entry.headers().firstValue("ETag").ifPresent(etag -> conditional.setHeader("If-None-Match", etag));
+				entry.headers().firstValue("Last-Modified").ifPresent(date -> conditional.setHeader("If-Modified-Since", date));
+				sent = conditional.build();
+			}
+			@SuppressWarnings("unchecked")
+			BodyHandler<Object> direct = (BodyHandler<Object>) flex.bodyHandler(type);
+			BodyHandler<Object> handler = responseInfo -> storable(responseInfo) ? new Spilling(Math.min(maxMemoryBytes / 4, Integer.MAX_VALUE - 8), () -> direct.apply(responseInfo)) : direct.apply(responseInfo);
+			return flex.exchange(sent, handler).thenApply(response -> {
+				if (response.statusCode() == 304 && entry != null) {
+					revalidations.increment();
+					return response(flex, request, revalidate(entry, response.headers()), type);
+				}
+				misses.increment();
+				if (!(response.body() instanceof Buffered buffered)) {
+					return response;
+				}
+				Entry received = entry(key, flex, request, response, buffered.bytes());
+				put(received);
+				return response(flex, request, received, type);
+			});
 		}
 
-		/**
-		 * Put chunk of data to current form-urlencoded.
-		 *
-		 * @param map Map.Entry Key is form-urlencoded name
-		 *            Map.Entry Value is form-urlencoded data (can be a {@link String},
-		 *            {@link InputStream}, byte[], or any other class will be
-		 *            automatically convert to Json string by
-		 *            {@link HttpFlex#defaultGson})
-		 */
-		public <T> UrlEncoded putAll(Map<String, ?> map) {
-			data.putAll(map);
-			needRebuild.set(true);
-			return this;
+		HttpResponse<?> response(HttpFlex flex, HttpRequest request, Entry entry, Type type) {
+			boolean shareable = entry.immutable() && !type.equals(InputStream.class) && !type.equals(byte[].class);
+			Supplier<Object> body = shareable ? () -> entry.decoded().computeIfAbsent(type, key -> flex.decodeBytes(key, entry.headers(), entry.body())) : () -> flex.decodeBytes(type, entry.headers(), entry.body());
+			return new CachedResponse(request, entry.statusCode(), entry.headers(), body, entry.uri(), entry.version());
 		}
 
 		/**
-		 * Put data to current form-urlencoded.
-		 *
-		 * @param name is form-urlencoded name
-		 * @param body is form-urlencoded data (can be a {@link String},
-		 *             {@link InputStream}, byte[], or any other class will be
-		 *             automatically convert to Json string by
-		 *             {@link HttpFlex#defaultGson})
+		 * Builds the entry of a full response, inflating a compressed body once.
 		 */
-		public <T> UrlEncoded put(String name, T body) {
-			data.put(name, body);
-			needRebuild.set(true);
-			return this;
+		Entry entry(String key, HttpFlex flex, HttpRequest request, HttpResponse<?> response, byte[] body) {
+			HttpHeaders headers = response.headers();
+			if (flex.compression && headers.firstValue("Content-Encoding").isPresent()) {
+				try (InputStream decoded = decode(headers, new ByteArrayInputStream(body))) {
+					body = decoded.readAllBytes();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				headers = HttpHeaders.of(headers.map(), (name, value) -> !name.equalsIgnoreCase("Content-Encoding") && !name.equalsIgnoreCase("Content-Length"));
+			}
+			return entry(key, response.uri(), response.version(), response.statusCode(), headers, body, vary(headers, request));
+		}
+
+		static Entry entry(String key, URI uri, HttpClient.Version version, int statusCode, HttpHeaders headers, byte[] body, String vary) {
+			Map<String, String> control = cacheControl(headers);
+			long now = System.currentTimeMillis();
+			long expiresAt = 0;
+			if (!control.containsKey("no-cache") && !control.containsKey("no-store")) {
+				try {
+					if (control.containsKey("max-age")) {
+						expiresAt = now + (Long.parseLong(control.get("max-age")) - headers.firstValueAsLong("Age").orElse(0)) * 1000;
+					} else if (headers.firstValue("Expires").isPresent()) {
+						expiresAt = ZonedDateTime.parse(headers.firstValue("Expires").get(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+					}
+				} catch (NumberFormatException | DateTimeParseException ignored) {
+				}
+			}
+			boolean cacheable = (statusCode == 200 || statusCode == 203) && !control.containsKey("no-store") && !control.containsKey("private") && vary != null;
+			return new Entry(cacheable ? key : null, uri, version, statusCode, headers, body, expiresAt, control.containsKey("immutable"), vary, new ConcurrentHashMap<>());
 		}
 
 		/**
-		 * Remove data of current form-urlencoded.
-		 *
-		 * @param name is form-urlencoded name
+		 * Refreshes entry with the headers of a 304 response.
 		 */
-		public UrlEncoded remove(String name) {
-			data.remove(name);
-			needRebuild.set(true);
-			return this;
+		Entry revalidate(Entry entry, HttpHeaders notModified) {
+			Map<String, List<String>> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			merged.putAll(entry.headers().map());
+			notModified.map().forEach((name, values) -> {
+				if (!name.equalsIgnoreCase("Content-Length")) {
+					merged.put(name, values);
+				}
+			});
+			Entry refreshed = entry(entry.key(), entry.uri(), entry.version(), entry.statusCode(), HttpHeaders.of(merged, (name, value) -> true), entry.body(), entry.vary());
+			if (refreshed.immutable()) {
+				refreshed.decoded().putAll(entry.decoded());
+			}
+			put(refreshed);
+			return refreshed;
+		}
+
+		Entry get(String key) {
+			lock.lock();
+			try {
+				Entry entry = memory.get(key);
+				if (entry != null || disk.remove(key) == null) {
+					return entry;
+				}
+			} finally {
+				lock.unlock();
+			}
+			Entry loaded = load(key);
+			if (loaded != null) {
+				put(loaded);
+			}
+			return loaded;
 		}
 
 		/**
-		 * @param name is form-urlencoded name
-		 * @param body is form-urlencoded data (can be a {@link String}, auto
-		 *             encode-url)
+		 * Stores entry in memory if it is cacheable and worth keeping (fresh
+		 * or revalidatable), spilling the least recently used entries to disk.
 		 */
-		public <T> UrlEncoded putEncoded(String name, String body) {
-			needRebuild.set(true);
-			return put(name, URLEncoder.encode(body, StandardCharsets.UTF_8));
+		void put(Entry entry) {
+			if (entry.key() == null || (entry.expiresAt() <= System.currentTimeMillis() && !entry.hasValidator()) || entry.size() > maxMemoryBytes / 4) {
+				return;
+			}
+			List<Entry> evicted = new ArrayList<>();
+			lock.lock();
+			try {
+				Entry previous = memory.put(entry.key(), entry);
+				if (previous != null) {
+					memoryBytes -= previous.size();
+				}
+				memoryBytes += entry.size();
+				Iterator<Entry> eldest = memory.values().iterator();
+				while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+					Entry victim = eldest.next();
+					eldest.remove();
+					memoryBytes -= victim.size();
+					evicted.add(victim);
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (directory != null) {
+				evicted.forEach(this::spill);
+			}
 		}
 
-		String inputStreamToString(final InputStream inputStream) {
-			StringBuilder stringBuilder = new StringBuilder();
-			byte[] buffer = new byte[1024];
-			int bytesRead;
+		Path file(String key, String suffix) {
 			try {
-				while ((bytesRead = inputStream.read(buffer)) != -1) {
-					stringBuilder.append(new String(buffer, 0, bytesRead));
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+				return directory.resolve(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8))) + suffix);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
 			}
-			return stringBuilder.toString();
 		}
 
-		public String build() {
-			if (needRebuild.compareAndSet(true, false)) {
-				data.forEach((name, body) -> {
-					try {
-						requestBody.append("&").append(name).append("=").append(switch (body) {
-							case Path path -> Files.readString(path);
-							case InputStream inputStream -> inputStreamToString(inputStream);
-							case byte[] bytes -> Base64.getEncoder().encodeToString(bytes);
-							case String string -> string;
-							case Boolean b -> b.toString();
-							case Integer i -> i.toString();
-							case Long l -> l.toString();
-							case Float d -> d.toString();
-							case Double d -> d.toString();
-							default -> defaultGson.get().toJson(body);
-						});
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				});
-				requestBody.deleteCharAt(0);
+		void spill(Entry entry) {
+			DiskEntry diskEntry = new DiskEntry();
+			diskEntry.key = entry.key();
+			diskEntry.uri = entry.uri().toString();
+			diskEntry.version = entry.version().name();
+			diskEntry.statusCode = entry.statusCode();
+			diskEntry.headers = entry.headers().map();
+			diskEntry.expiresAt = entry.expiresAt();
+			diskEntry.immutable = entry.immutable();
+			diskEntry.vary = entry.vary();
+			try {
+				Files.createDirectories(directory);
+				Files.write(file(entry.key(), ".body"), entry.body());
+				Files.writeString(file(entry.key(), ".json"), defaultGson.get().toJson(diskEntry));
+			} catch (IOException e) {
+				e.printStackTrace();
+				deleteFiles(entry.key());
+				return;
+			}
+			List<String> evicted = new ArrayList<>();
+			lock.lock();
+			try {
+				Long previous = disk.put(entry.key(), entry.size());
+				diskBytes += entry.size() - (previous == null ? 0 : previous);
+				Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+				while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+					Map.Entry<String, Long> victim = eldest.next();
+					eldest.remove();
+					diskBytes -= victim.getValue();
+					evicted.add(victim.getKey());
+				}
+			} finally {
+				lock.unlock();
 			}
-			return requestBody.toString();
+			evicted.forEach(this::deleteFiles);
 		}
 
-		/**
-		 * Re-use instance with empty variable
-		 */
-		public void reset() {
-			requestBody.setLength(0);
-			data.clear();
+		Entry load(String key) {
+			try (Reader reader = Files.newBufferedReader(file(key, ".json"))) {
+				DiskEntry diskEntry = defaultGson.get().fromJson(reader, DiskEntry.class);
+				byte[] body = Files.readAllBytes(file(key, ".body"));
+				lock.lock();
+				try {
+					diskBytes -= body.length + 512L;
+				} finally {
+					lock.unlock();
+				}
+				return new Entry(key, URI.create(diskEntry.uri), HttpClient.Version.valueOf(diskEntry.version), diskEntry.statusCode, HttpHeaders.of(diskEntry.headers, (name, value) -> true), body, diskEntry.expiresAt, diskEntry.immutable, diskEntry.vary == null ? "" : diskEntry.vary, new ConcurrentHashMap<>());
+			} catch (IOException | RuntimeException e) {
+				return null;
+			} finally {
+				deleteFiles(key);
+			}
 		}
 
-		/**
-		 * Remove intsance
-		 */
-		public void close() {
-			requestBody.setLength(0);
-			data.clear();
+		void deleteFiles(String key) {
+			try {
+				Files.deleteIfExists(file(key, ".json"));
+				Files.deleteIfExists(file(key, ".body"));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
@@ -876,17 +6691,150 @@ public class HttpFlex {
 	 * @return {@link Path}
 	 */
 	public static Path getFile(URI uri, Path path) {
-		try {
-			if (!Files.isRegularFile(path)) {
-				Files.write(path, getFileBytes(uri), StandardOpenOption.CREATE_NEW);
-			}
+		return getFile(uri, path, false);
+	}
+
+	/**
+	 * Use for download file from http server. The body is streamed to a
+	 * temporary file next to path and moved to path once complete, so path
+	 * never holds a partial download.
+	 *
+	 * @param uri         {@link URI}
+	 * @param path        {@link Path} to save to, kept as is if it already exists
+	 * @param preallocate true to size the file to the Content-Length before
+	 *                    writing, see {@link #fileHandler(Path, boolean)}
+	 * @return {@link Path}, or null when the download fails
+	 */
+	public static Path getFile(URI uri, Path path, boolean preallocate) {
+		if (Files.isRegularFile(path)) {
 			return path;
-		} catch (IOException e) {
+		}
+		try {
+			HttpFlex flex = new HttpFlex(uri);
+			return await(flex.exchange(flex.requestBuilder.GET().build(), fileHandler(path, preallocate))).body();
+		} catch (IOException | UncheckedIOException | InterruptedException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
+	/**
+	 * {@link BodyHandler} that streams a 2xx response body to a temporary file in
+	 * the directory of path and moves it to path when the body is complete,
+	 * unless path was created meanwhile, which is then kept as is. The temporary
+	 * file is deleted if the download fails or is cancelled. Non 2xx bodies are
+	 * discarded and the handler yields null.
+	 *
+	 * @param path        the destination file
+	 * @param preallocate true to extend the temporary file to the Content-Length
+	 *                    up front when it is known. Java has no fallocate, so
+	 *                    this sets the file length, which reserves the space on
+	 *                    file systems that do not create sparse files
+	 * @return the handler, whose body is path
+	 */
+	public static BodyHandler<Path> fileHandler(Path path, boolean preallocate) {
+		return new OneShotHandler<>(responseInfo -> {
+			if (responseInfo.statusCode() / 100 != 2) {
+				return BodySubscribers.replacing(null);
+			}
+			try {
+				Path target = path.toAbsolutePath();
+				Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".part");
+				long length = responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1);
+				if (preallocate && length > 0) {
+					try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+						file.setLength(length);
+					}
+				}
+				return new FileSubscriber(BodySubscribers.ofFile(temp, StandardOpenOption.WRITE), temp, path);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Moves temp to path without replacing an existing path: a hard link fails
+	 * atomically when path exists, a plain move is used where links are not
+	 * supported. temp is deleted when path exists.
+	 */
+	static void publish(Path temp, Path path) throws IOException {
+		try {
+			Files.createLink(path, temp);
+			Files.deleteIfExists(temp);
+		} catch (FileAlreadyExistsException e) {
+			Files.deleteIfExists(temp);
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			try {
+				Files.move(temp, path);
+			} catch (FileAlreadyExistsException exists) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * Writes the body to a temporary file, then moves it to its destination.
+	 */
+	record FileSubscriber(BodySubscriber<Path> delegate, Path temp, Path path) implements BodySubscriber<Path> {
+		@Override
+		public CompletionStage<Path> getBody() {
+			return delegate.getBody().thenApply(written -> {
+				try {
+					publish();
+					return path;
+				} catch (IOException e) {
+					deleteTemp();
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+
+		void publish() throws IOException {
+			HttpFlex.publish(temp, path);
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			delegate.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+					subscription.request(n);
+				}
+
+				@Override
+				public void cancel() {
+					subscription.cancel();
+					deleteTemp();
+				}
+			});
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			delegate.onNext(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			delegate.onError(throwable);
+			deleteTemp();
+		}
+
+		@Override
+		public void onComplete() {
+			delegate.onComplete();
+		}
+
+		void deleteTemp() {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Use for download multiple files from http server
 	 *
@@ -894,7 +6842,7 @@ public class HttpFlex {
 	 * @return {@link List<InputStream>}
 	 */
 	public static List<InputStream> getFilesInputStreamFromURI(List<URI> uriList) {
-		return uriList.stream().map(HttpFlex::getFileInputStream).filter(Objects::nonNull).toList();
+		return values(BulkDownload.instance().inputStreamsFromURI(uriList));
 	}
 
 	/**
@@ -904,7 +6852,7 @@ public class HttpFlex {
 	 * @return {@link List<byte[]>}
 	 */
 	public static List<byte[]> getFilesBytesFromURI(List<URI> uriList) {
-		return uriList.stream().map(HttpFlex::getFileBytes).filter(Objects::nonNull).toList();
+		return values(BulkDownload.instance().bytesFromURI(uriList));
 	}
 
 	/**
@@ -914,7 +6862,7 @@ public class HttpFlex {
 	 * @return {@link List<Path>}
 	 */
 	public static List<Path> getFilesFromURI(Map<URI, Path> uriPathMap) {
-		return uriPathMap.entrySet().stream().map(entry -> getFile(entry.getKey(), entry.getValue())).filter(Objects::nonNull).toList();
+		return values(BulkDownload.instance().filesFromURI(uriPathMap));
 	}
 
 	/**
@@ -957,6 +6905,9 @@ public class HttpFlex {
 	 */
 	public static Path getFile(String url, Path destinationPath) {
 		try {
+			if (!url.startsWith("data:image")) {
+				return getFile(URI.create(url), destinationPath);
+			}
 			if (!Files.isRegularFile(destinationPath)) {
 				Files.write(destinationPath, getFileBytes(url), StandardOpenOption.CREATE_NEW);
 			}
@@ -974,7 +6925,7 @@ public class HttpFlex {
 	 * @return {@link List<InputStream>}
 	 */
 	public static List<InputStream> getFilesInputStream(List<String> urlList) {
-		return urlList.stream().map(HttpFlex::getFileInputStream).filter(Objects::nonNull).toList();
+		return values(BulkDownload.instance().inputStreams(urlList));
 	}
 
 	/**
@@ -984,7 +6935,7 @@ public class HttpFlex {
 	 * @return {@link List<byte[]>}
 	 */
 	public static List<byte[]> getFilesBytes(List<String> urlList) {
-		return urlList.stream().map(HttpFlex::getFileBytes).filter(Objects::nonNull).toList();
+		return values(BulkDownload.instance().bytes(urlList));
 	}
 
 	/**
@@ -994,6 +6945,14 @@ public class HttpFlex {
 	 * @return {@link List<Path>}
 	 */
 	public static List<Path> getFiles(Map<String, Path> urlPathMap) {
-		return urlPathMap.entrySet().stream().map(entry -> getFile(entry.getKey(), entry.getValue())).filter(Objects::nonNull).toList();
+		return values(BulkDownload.instance().files(urlPathMap));
+	}
+
+	/**
+	 * @return values of the downloads that succeeded or were skipped, dropping
+	 *         failures
+	 */
+	static <R> List<R> values(List<BulkDownload.Result<R>> results) {
+		return results.stream().filter(result -> result.status() != BulkDownload.Status.FAILURE).map(BulkDownload.Result::value).filter(Objects::nonNull).toList();
 	}
 }
@@ -0,0 +1,21 @@
+package HttpFlex;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected by the JMH command line (all by default) with
+ * the GC profiler, so every result reports throughput, latency percentiles
+ * (SampleTime mode) and allocation rate. Accepts every JMH option, e.g.
+ * {@code java -jar target/benchmarks.jar GetBenchmark -p size=1024}.
+ */
+public final class BenchmarkMain {
+	private BenchmarkMain() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+	}
+}
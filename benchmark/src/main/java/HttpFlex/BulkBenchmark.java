@@ -0,0 +1,90 @@
+package HttpFlex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bulk helpers {@link HttpFlex#getFilesBytes(List)} and
+ * {@link HttpFlex#getFiles(Map)} downloading files files of 64KB each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkBenchmark {
+	@Param({"16", "128"})
+	int files;
+
+	LoopbackServer server;
+	Path directory;
+	List<String> urls;
+	Map<String, Path> targets;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		server = new LoopbackServer();
+		directory = Files.createTempDirectory("httpflex-bench");
+		urls = new ArrayList<>();
+		targets = new LinkedHashMap<>();
+		for (int i = 0; i < files; i++) {
+			// a distinct query per file so each one is a separate request
+			String url = server.uri("/bytes?size=65536&file=" + i).toString();
+			urls.add(url);
+			targets.put(url, directory.resolve("file" + i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		server.close();
+		try (var paths = Files.list(directory)) {
+			for (Path path : paths.toList()) {
+				Files.deleteIfExists(path);
+			}
+		}
+		Files.deleteIfExists(directory);
+	}
+
+	/**
+	 * Deletes the files of the previous getFiles call, which would otherwise be
+	 * skipped as already downloaded.
+	 */
+	@Setup(Level.Invocation)
+	public void deleteTargets() throws IOException {
+		for (Path target : targets.values()) {
+			Files.deleteIfExists(target);
+		}
+	}
+
+	@Benchmark
+	public List<byte[]> getFilesBytes() {
+		return HttpFlex.getFilesBytes(urls);
+	}
+
+	@Benchmark
+	public List<Path> getFiles() {
+		return HttpFlex.getFiles(targets);
+	}
+}
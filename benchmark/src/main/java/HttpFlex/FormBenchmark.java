@@ -0,0 +1,76 @@
+package HttpFlex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building {@link HttpFlex.Multipart} request bodies without sending them,
+ * with fields fields and a file part of fileSize bytes. multipartCopy changes
+ * one field of a prebuilt template form, reusing the cached parts of the
+ * others. {@link UrlEncodedBenchmark} covers url-encoded forms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormBenchmark {
+	@Param({"1024", "1048576", "16777216"})
+	int fileSize;
+
+	@Param({"10", "100"})
+	int fields;
+
+	Path file;
+	Map<String, Object> form;
+	HttpFlex.Multipart template;
+	int counter;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		byte[] bytes = new byte[fileSize];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		file = Files.write(Files.createTempFile("httpflex-bench", ".bin"), bytes);
+		form = new LinkedHashMap<>();
+		for (int i = 0; i < fields; i++) {
+			form.put("field" + i, "value " + i + " & more=" + i);
+		}
+		template = HttpFlex.Multipart.instance(form).put("file", file);
+		template.build();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public byte[] multipartBuild() {
+		return HttpFlex.Multipart.instance(form).put("file", file).build();
+	}
+
+	@Benchmark
+	public byte[] multipartCopy() {
+		return template.copy().put("field0", "changed " + counter++).build();
+	}
+}
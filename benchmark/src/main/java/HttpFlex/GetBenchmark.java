@@ -0,0 +1,67 @@
+package HttpFlex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link HttpFlex#get(Class)} of a response of size bytes as String, byte[]
+ * and {@link InputStream}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+	@Param({"1024", "65536", "1048576"})
+	int size;
+
+	LoopbackServer server;
+	URI uri;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		server = new LoopbackServer();
+		uri = server.uri("/bytes?size=" + size);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.close();
+	}
+
+	@Benchmark
+	public String getString() {
+		return new HttpFlex(uri).get();
+	}
+
+	@Benchmark
+	public byte[] getBytes() {
+		return new HttpFlex(uri).get(byte[].class);
+	}
+
+	@Benchmark
+	public long getInputStream() throws IOException {
+		try (InputStream in = new HttpFlex(uri).get(InputStream.class)) {
+			return in.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package HttpFlex;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * Json decoding of a GET into POJOs, and POST of a POJO or of a prebuilt Json
+ * String, for items {@link LoopbackServer.Item} per body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+	@Param({"10", "1000"})
+	int items;
+
+	LoopbackServer server;
+	URI jsonUri;
+	URI echoUri;
+	List<LoopbackServer.Item> body;
+	String bodyJson;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		server = new LoopbackServer();
+		jsonUri = server.uri("/json?items=" + items);
+		echoUri = server.uri("/echo");
+		body = LoopbackServer.items(items);
+		bodyJson = new Gson().toJson(body);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.close();
+	}
+
+	@Benchmark
+	public LoopbackServer.Item[] getPojo() {
+		return new HttpFlex(jsonUri).get(LoopbackServer.Item[].class);
+	}
+
+	@Benchmark
+	public String postPojo() {
+		return new HttpFlex(echoUri).post(body);
+	}
+
+	@Benchmark
+	public String postJson() {
+		return new HttpFlex(echoUri).header(HttpFlex.ContentType.JSON).post(bodyJson);
+	}
+}
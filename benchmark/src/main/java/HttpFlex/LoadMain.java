@@ -0,0 +1,30 @@
+package HttpFlex;
+
+import java.net.URI;
+import java.time.Duration;
+
+/**
+ * Runs {@link HttpFlex.LoadRunner} in closed-loop and open-loop mode against a
+ * {@link LoopbackServer}, e.g.
+ * {@code java -cp target/benchmarks.jar HttpFlex.LoadMain 16 2000 10}.
+ * <p>
+ * Arguments: concurrent users (default 16), open-loop rate per second (default
+ * 2000) and seconds per mode (default 10).
+ */
+public final class LoadMain {
+	private LoadMain() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 2000;
+		Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 10);
+		try (LoopbackServer server = new LoopbackServer()) {
+			URI uri = server.uri("/json?items=10");
+			HttpFlex.Template template = new HttpFlex(uri).template();
+			HttpFlex.LoadRunner.instance(() -> template.get(LoopbackServer.Item[].class)).closedLoop(users).warmup(Duration.ofSeconds(2)).duration(duration).run().print(System.out);
+			HttpFlex.LoadRunner.instance(() -> template.get(LoopbackServer.Item[].class)).openLoop(rate).warmup(Duration.ofSeconds(2)).duration(duration).run().print(System.out);
+		}
+		System.exit(0);
+	}
+}
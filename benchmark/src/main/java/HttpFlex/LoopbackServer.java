@@ -0,0 +1,128 @@
+package HttpFlex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server on loopback standing in for a real service in the
+ * benchmarks. Responses are prebuilt so the server costs as little as possible
+ * per request.
+ * <ul>
+ * <li>/bytes?size=N answers N random bytes</li>
+ * <li>/json?items=N answers a Json array of N {@link Item}</li>
+ * <li>/echo reads and discards the request body and answers a small Json</li>
+ * <li>/delay?ms=N answers a small Json after N milliseconds, like a slow
+ * backend</li>
+ * </ul>
+ */
+public final class LoopbackServer implements AutoCloseable {
+	/**
+	 * Json item served by /json.
+	 */
+	public record Item(long id, String name, double price, List<String> tags) {
+	}
+
+	static final byte[] ECHO = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+
+	final HttpServer server;
+	final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+
+	public LoopbackServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		server.setExecutor(executor);
+		server.createContext("/bytes", exchange -> {
+			int size = Integer.parseInt(query(exchange, "size", "1024"));
+			respond(exchange, "application/octet-stream", bodies.computeIfAbsent("bytes" + size, key -> random(size)));
+		});
+		server.createContext("/json", exchange -> {
+			int items = Integer.parseInt(query(exchange, "items", "10"));
+			respond(exchange, "application/json", bodies.computeIfAbsent("json" + items, key -> json(items)));
+		});
+		server.createContext("/echo", exchange -> {
+			try (InputStream in = exchange.getRequestBody()) {
+				in.transferTo(OutputStream.nullOutputStream());
+			}
+			respond(exchange, "application/json", ECHO);
+		});
+		server.createContext("/delay", exchange -> {
+			try {
+				Thread.sleep(Long.parseLong(query(exchange, "ms", "10")));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			respond(exchange, "application/json", ECHO);
+		});
+		server.start();
+	}
+
+	/**
+	 * @param pathAndQuery e.g. "/bytes?size=1024"
+	 * @return the URI of pathAndQuery on this server
+	 */
+	public URI uri(String pathAndQuery) {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + pathAndQuery);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	static String query(HttpExchange exchange, String name, String fallback) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				if (pair.startsWith(name + "=")) {
+					return pair.substring(name.length() + 1);
+				}
+			}
+		}
+		return fallback;
+	}
+
+	static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return n items, the same for every call with the same n
+	 */
+	public static List<Item> items(int n) {
+		List<Item> items = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			items.add(new Item(i, "item-" + i, i * 1.25, List.of("tag-" + (i % 7), "tag-" + (i % 11))));
+		}
+		return items;
+	}
+
+	static byte[] json(int n) {
+		return new Gson().toJson(items(n)).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,50 @@
+package HttpFlex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building {@link HttpFlex.UrlEncoded} request bodies of fields fields without
+ * sending them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlEncodedBenchmark {
+	@Param({"10", "100"})
+	int fields;
+
+	Map<String, String> form;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		form = new LinkedHashMap<>();
+		for (int i = 0; i < fields; i++) {
+			form.put("field" + i, "value " + i + " & more=" + i);
+		}
+	}
+
+	@Benchmark
+	public String urlEncodedBuild() {
+		HttpFlex.UrlEncoded urlEncoded = HttpFlex.UrlEncoded.instance();
+		form.forEach(urlEncoded::putEncoded);
+		return urlEncoded.build();
+	}
+}
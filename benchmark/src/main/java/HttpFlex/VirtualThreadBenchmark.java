@@ -0,0 +1,88 @@
+package HttpFlex;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs calls blocking {@link HttpFlex#get(Class)} against a backend answering after
+ * 20ms, all submitted at once: on a fixed pool of 200 platform threads, the
+ * usual thread-per-request setup, or on one virtual thread per call with
+ * {@link HttpFlex#virtualThreads(boolean)}. The platform pool has at most 200
+ * calls in flight, virtual threads park while waiting so every call is in
+ * flight at once, bounded only by the connections of the client and the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class VirtualThreadBenchmark {
+	@Param({"platform", "virtual"})
+	String mode;
+
+	@Param({"1000", "10000"})
+	int calls;
+
+	LoopbackServer server;
+	URI uri;
+	ExecutorService executor;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		server = new LoopbackServer();
+		uri = server.uri("/delay?ms=20");
+		HttpFlex.defaultVirtualThreads("virtual".equals(mode));
+	}
+
+	@Setup(Level.Iteration)
+	public void start() {
+		executor = "virtual".equals(mode) ? Executors.newVirtualThreadPerTaskExecutor()
+				: Executors.newFixedThreadPool(200);
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		HttpFlex.defaultVirtualThreads(false);
+		server.close();
+	}
+
+	@Benchmark
+	public int blockingCalls() throws InterruptedException, ExecutionException {
+		List<Future<byte[]>> futures = new ArrayList<>(calls);
+		for (int i = 0; i < calls; i++) {
+			futures.add(executor.submit(() -> new HttpFlex(uri).get(byte[].class)));
+		}
+		int bytes = 0;
+		for (Future<byte[]> future : futures) {
+			bytes += future.get().length;
+		}
+		return bytes;
+	}
+}
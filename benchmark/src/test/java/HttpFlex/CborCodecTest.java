@@ -0,0 +1,124 @@
+package HttpFlex;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * {@link HttpFlex.CborCodec} against the examples of RFC 8949 Appendix A.
+ */
+class CborCodecTest {
+	static JsonElement decode(String hex) throws IOException {
+		return HttpFlex.CborCodec.read(new DataInputStream(new ByteArrayInputStream(HexFormat.of().parseHex(hex))), 0);
+	}
+
+	static String encode(JsonElement element) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			HttpFlex.CborCodec.write(element, out);
+		}
+		return HexFormat.of().formatHex(bytes.toByteArray());
+	}
+
+	/**
+	 * Items the codec writes in preferred serialization: decoding gives the
+	 * value, and encoding the value gives the same bytes.
+	 */
+	@ParameterizedTest
+	@CsvSource(delimiter = '|', quoteCharacter = '`', value = {
+			// shortest heads at each boundary
+			"00|0", "01|1", "0a|10", "17|23", "1818|24", "1819|25", "1864|100", "18ff|255", "190100|256",
+			"1903e8|1000", "19ffff|65535", "1a00010000|65536", "1a000f4240|1000000", "1affffffff|4294967295",
+			"1b0000000100000000|4294967296", "1b000000e8d4a51000|1000000000000",
+			"1bffffffffffffffff|18446744073709551615", "3bffffffffffffffff|-18446744073709551616",
+			"20|-1", "29|-10", "3863|-100", "3903e7|-1000",
+			// bignums
+			"c249010000000000000000|18446744073709551616", "c349010000000000000000|-18446744073709551617",
+			// floats, float16 first
+			"f90000|0.0", "f98000|-0.0", "f93c00|1.0", "fb3ff199999999999a|1.1", "f93e00|1.5", "f97bff|65504.0",
+			"fa47c35000|100000.0", "fa7f7fffff|3.4028234663852886e+38", "fb7e37e43c8800759c|1.0e+300",
+			"f90001|5.960464477539063e-8", "f90400|0.00006103515625", "f9c400|-4.0", "fbc010666666666666|-4.1",
+			// simple values, strings, arrays, maps
+			"f4|false", "f5|true", "f6|null",
+			"60|`\"\"`", "6161|`\"a\"`", "6449455446|`\"IETF\"`", "62225c|`\"\\\"\\\\\"`", "62c3bc|`\"ü\"`",
+			"63e6b0b4|`\"水\"`", "64f0908591|`\"𐅑\"`",
+			"80|[]", "83010203|`[1,2,3]`", "8301820203820405|`[1,[2,3],[4,5]]`",
+			"98190102030405060708090a0b0c0d0e0f101112131415161718181819|`[1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25]`",
+			"a0|{}", "a26161016162820203|`{\"a\":1,\"b\":[2,3]}`", "826161a161626163|`[\"a\",{\"b\":\"c\"}]`",
+			"a56161614161626142616361436164614461656145|`{\"a\":\"A\",\"b\":\"B\",\"c\":\"C\",\"d\":\"D\",\"e\":\"E\"}`"
+	})
+	void roundTrip(String hex, String json) throws IOException {
+		JsonElement decoded = decode(hex);
+		assertEquals(JsonParser.parseString(json), decoded);
+		assertEquals(hex, encode(decoded));
+	}
+
+	/**
+	 * Items that decode to a value the codec writes differently: indefinite
+	 * lengths, byte strings, integer map keys and tags.
+	 */
+	@ParameterizedTest
+	@CsvSource(delimiter = '|', quoteCharacter = '`', value = {
+			"5f42010243030405ff|`[1,2,3,4,5]`", "4401020304|`[1,2,3,4]`", "40|[]",
+			"7f657374726561646d696e67ff|`\"streaming\"`",
+			"9fff|[]", "9f018202039f0405ffff|`[1,[2,3],[4,5]]`", "9f01820203820405ff|`[1,[2,3],[4,5]]`",
+			"83018202039f0405ff|`[1,[2,3],[4,5]]`", "83019f0203ff820405|`[1,[2,3],[4,5]]`",
+			"9f0102030405060708090a0b0c0d0e0f101112131415161718181819ff|`[1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25]`",
+			"bf61610161629f0203ffff|`{\"a\":1,\"b\":[2,3]}`", "826161bf61626163ff|`[\"a\",{\"b\":\"c\"}]`",
+			"bf6346756ef563416d7421ff|`{\"Fun\":true,\"Amt\":-2}`", "a201020304|`{\"1\":2,\"3\":4}`",
+			"c074323031332d30332d32315432303a30343a30305a|`\"2013-03-21T20:04:00Z\"`", "c11a514b67b0|1363896240",
+			"d74401020304|`[1,2,3,4]`", "f7|null"
+	})
+	void decodeOnly(String hex, String json) throws IOException {
+		assertEquals(JsonParser.parseString(json), decode(hex));
+	}
+
+	/**
+	 * Non-finite floats of every width, written back as float16.
+	 */
+	@ParameterizedTest
+	@CsvSource({
+			"f97c00, Infinity, f97c00", "f9fc00, -Infinity, f9fc00", "f97e00, NaN, f97e00",
+			"fa7f800000, Infinity, f97c00", "faff800000, -Infinity, f9fc00", "fa7fc00000, NaN, f97e00",
+			"fb7ff0000000000000, Infinity, f97c00", "fbfff0000000000000, -Infinity, f9fc00", "fb7ff8000000000000, NaN, f97e00"
+	})
+	void nonFinite(String hex, double expected, String preferred) throws IOException {
+		JsonElement decoded = decode(hex);
+		assertEquals(expected, decoded.getAsDouble());
+		assertEquals(preferred, encode(decoded));
+	}
+
+	/**
+	 * Malformed items of RFC 8949 Appendix F: indefinite length on major types
+	 * 0, 1 and 6, and a break outside an indefinite length item.
+	 */
+	@ParameterizedTest
+	@CsvSource({"1f", "3f", "df00", "ff", "81ff", "a1ff", "a16161ff"})
+	void malformed(String hex) {
+		assertThrows(IOException.class, () -> decode(hex));
+	}
+
+	@Test
+	void deepNesting() {
+		assertThrows(IOException.class, () -> decode("81".repeat(100_000) + "00"));
+		assertThrows(IOException.class, () -> decode("9f".repeat(100_000)));
+	}
+
+	@Test
+	void nestingWithinLimit() throws IOException {
+		assertEquals(JsonParser.parseString("[".repeat(200) + "0" + "]".repeat(200)), decode("81".repeat(200) + "00"));
+	}
+}